@@ -0,0 +1,171 @@
+package com.example.chartographer.benchmark;
+
+import com.example.chartographer.config.Config;
+import com.example.chartographer.image.Bmp;
+import com.example.chartographer.service.ChartaLockManager;
+import com.example.chartographer.service.ChartaMetrics;
+import com.example.chartographer.service.ChartaPyramid;
+import com.example.chartographer.service.ChartaReaper;
+import com.example.chartographer.service.ChartaService;
+import com.example.chartographer.service.ChartaVersions;
+import com.example.chartographer.service.FragmentJournal;
+import com.example.chartographer.service.ParallelBands;
+import com.example.chartographer.storage.BmpChartaStore;
+import com.example.chartographer.storage.ChartaStore;
+import com.example.chartographer.storage.ContentLayout;
+import com.example.chartographer.storage.TiledChartaStore;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link ChartaService} against every storage backend in a fresh temporary content directory.
+ * Run with {@code mvn -P benchmark test-compile exec:exec -Djmh.args="..."}, adding {@code -t <threads>}
+ * to the JMH arguments for concurrent clients. The cache and the pyramid are left out to measure raw pixel I/O.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChartaServiceBenchmark {
+
+    @Param({"bmp", "bmp-mmap", "tiled", "tiled-rle", "tiled-deflate"})
+    public String store;
+
+    @Param({"small", "large", "huge"})
+    public String size;
+
+    @Param({"wide", "tall", "clipped"})
+    public String shape;
+
+    /**
+     * Threads moving the bands of large fragments; 1 keeps every fragment sequential, 0 uses every core.
+     */
+    @Param({"1", "4"})
+    public int bandThreads;
+
+    private Path content;
+    private ChartaService service;
+    private ChartaReaper reaper;
+    private ParallelBands parallelBands;
+    private String charta;
+    private int chartaW;
+    private int chartaH;
+    private int x;
+    private int y;
+    private int fragmentW;
+    private int fragmentH;
+    private byte[] fragment;
+    private final Queue<String> created = new ConcurrentLinkedQueue<>();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        content = Files.createTempDirectory("chartographer-benchmark");
+        Config.pathToContent = content.toString();
+
+        ContentLayout layout = new ContentLayout("", 256);
+        ChartaStore chartaStore;
+        switch (store) {
+            case "bmp-mmap":
+                chartaStore = new BmpChartaStore(true, 1L << 28, 256, layout);
+                break;
+            case "tiled":
+                chartaStore = new TiledChartaStore(256, "none", layout);
+                break;
+            case "tiled-rle":
+                chartaStore = new TiledChartaStore(256, "rle", layout);
+                break;
+            case "tiled-deflate":
+                chartaStore = new TiledChartaStore(256, "deflate", layout);
+                break;
+            default:
+                chartaStore = new BmpChartaStore(false, 0, 256, layout);
+        }
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        ChartaLockManager locks = new ChartaLockManager(1024, registry);
+        ChartaPyramid pyramid = new ChartaPyramid(chartaStore, locks, false);
+        ChartaVersions versions = new ChartaVersions();
+        FragmentJournal journal = new FragmentJournal(chartaStore, locks, pyramid, versions, layout, false, 0);
+        ChartaMetrics metrics = new ChartaMetrics(registry);
+        reaper = new ChartaReaper(chartaStore, locks, pyramid, journal, layout, versions, metrics);
+        reaper.start();
+        parallelBands = new ParallelBands(chartaStore, bandThreads, 4_000_000);
+        service = new ChartaService(chartaStore, locks, pyramid, journal, reaper, versions, parallelBands, metrics);
+
+        chartaW = "small".equals(size) ? 1000 : "large".equals(size) ? 5000 : 20000;
+        chartaH = "small".equals(size) ? 1000 : "large".equals(size) ? 5000 : 50000;
+        switch (shape) {
+            case "wide":
+                fragmentW = 5000;
+                fragmentH = 100;
+                x = 0;
+                y = chartaH / 2;
+                break;
+            case "tall":
+                fragmentW = 100;
+                fragmentH = 5000;
+                x = chartaW / 2;
+                y = 0;
+                break;
+            default:
+                fragmentW = 5000;
+                fragmentH = 5000;
+                x = Math.max(chartaW - fragmentW / 2, 0);
+                y = Math.max(chartaH - fragmentH / 2, 0);
+        }
+        charta = service.create(chartaW, chartaH);
+        fragment = bmp(fragmentW, fragmentH);
+        service.save(charta, x, y, fragmentW, fragmentH, new ByteArrayInputStream(fragment));
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteCreated() throws IOException {
+        for (String id = created.poll(); id != null; id = created.poll()) {
+            service.delete(id);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        reaper.stop();
+        parallelBands.shutdown();
+        FileSystemUtils.deleteRecursively(content);
+    }
+
+    @Benchmark
+    public String create() {
+        String id = service.create(chartaW, chartaH);
+        created.add(id);
+        return id;
+    }
+
+    @Benchmark
+    public void save() throws IOException {
+        service.save(charta, x, y, fragmentW, fragmentH, new ByteArrayInputStream(fragment));
+    }
+
+    @Benchmark
+    public void get() throws IOException {
+        service.get(charta, x, y, fragmentW, fragmentH, OutputStream.nullOutputStream());
+    }
+
+    private static byte[] bmp(int width, int height) {
+        byte[] bmp = new byte[Bmp.HEADER_SIZE + Bmp.rowSize(width) * height];
+        System.arraycopy(Bmp.header(width, height), 0, bmp, 0, Bmp.HEADER_SIZE);
+        for (int i = Bmp.HEADER_SIZE; i < bmp.length; i++) {
+            bmp[i] = (byte) i;
+        }
+        return bmp;
+    }
+}
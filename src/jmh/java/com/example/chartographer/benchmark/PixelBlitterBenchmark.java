@@ -0,0 +1,68 @@
+package com.example.chartographer.benchmark;
+
+import com.example.chartographer.image.PixelBlitter;
+import com.example.chartographer.image.PixelRaster;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link PixelBlitter} with the per-row limit/position/put loop the storage backends used before,
+ * copying the clipped part of a 256x256 tile into a fragment the way a tiled read does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PixelBlitterBenchmark {
+
+    private static final int TILE = 256;
+
+    @Param({"false", "true"})
+    public boolean direct;
+
+    @Param({"256", "100"})
+    public int fragment;
+
+    private ByteBuffer tile;
+    private ByteBuffer dst;
+    private PixelRaster tileRaster;
+    private PixelRaster dstRaster;
+    private int offset;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        byte[] pixels = new byte[TILE * TILE * 3];
+        ThreadLocalRandom.current().nextBytes(pixels);
+        tile = ByteBuffer.allocate(pixels.length).put(pixels);
+        tile.clear();
+        dst = direct ? ByteBuffer.allocateDirect(fragment * fragment * 3) : ByteBuffer.allocate(fragment * fragment * 3);
+        tileRaster = new PixelRaster(tile, 0, TILE, TILE, TILE * 3, false);
+        dstRaster = PixelRaster.packed(dst, fragment, fragment);
+        offset = (TILE - fragment) / 2;
+    }
+
+    @Benchmark
+    public ByteBuffer rowLoop() {
+        int base = dst.position();
+        for (int row = offset; row < offset + fragment; row++) {
+            int from = (row * TILE + offset) * 3;
+            tile.limit(from + fragment * 3).position(from);
+            dst.position(base + (row - offset) * fragment * 3);
+            dst.put(tile);
+        }
+        tile.clear();
+        dst.position(base);
+        return dst;
+    }
+
+    @Benchmark
+    public ByteBuffer blit() {
+        PixelBlitter.blit(tileRaster, offset, offset, dstRaster, 0, 0, fragment, fragment);
+        return dst;
+    }
+}
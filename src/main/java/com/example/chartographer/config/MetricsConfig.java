@@ -0,0 +1,29 @@
+package com.example.chartographer.config;
+
+import com.example.chartographer.storage.CachingChartaStore;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+public class MetricsConfig {
+
+    @Bean
+    public MeterBinder cacheMetrics(CachingChartaStore cache) {
+        return registry -> {
+            FunctionCounter.builder("chartographer.cache.hits", cache, c -> c.getStats().getHits())
+                    .register(registry);
+            FunctionCounter.builder("chartographer.cache.misses", cache, c -> c.getStats().getMisses())
+                    .register(registry);
+            FunctionCounter.builder("chartographer.cache.evictions", cache, c -> c.getStats().getEvictions())
+                    .register(registry);
+            Gauge.builder("chartographer.cache.blocks", cache, c -> c.getStats().getBlocks())
+                    .register(registry);
+            Gauge.builder("chartographer.cache.size", cache, c -> c.getStats().getBytes())
+                    .baseUnit("bytes")
+                    .register(registry);
+        };
+    }
+}
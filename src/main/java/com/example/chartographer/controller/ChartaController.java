@@ -1,18 +1,22 @@
 package com.example.chartographer.controller;
 
-import com.example.chartographer.config.Config;
+import com.example.chartographer.image.ImageFormat;
 import com.example.chartographer.service.ChartaService;
+import com.example.chartographer.service.FragmentResult;
 import lombok.RequiredArgsConstructor;
-import org.springframework.core.io.ByteArrayResource;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.context.request.async.WebAsyncTask;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.validation.constraints.Max;
 import javax.validation.constraints.Min;
-import java.io.File;
-import java.io.IOException;
+import java.util.List;
 
 @RestController
 @RequestMapping("/chartas")
@@ -22,6 +26,8 @@ public class ChartaController {
 
     private final ChartaService service;
 
+    private final IoExecutors executors;
+
     @PostMapping
     @ResponseStatus(HttpStatus.CREATED)
     public String create(@RequestParam @Min(1) @Max(20000) int width,
@@ -30,33 +36,114 @@ public class ChartaController {
         return service.create(width, height);
     }
 
-    @PostMapping(value = "/{id}", consumes = "image/bmp")
-    public void save(@PathVariable String id,
-                     @RequestParam @Min(0) @Max(20000) int x,
-                     @RequestParam @Min(0) @Max(50000) int y,
-                     @RequestParam @Min(1) @Max(5000) int width,
-                     @RequestParam @Min(1) @Max(5000) int height,
-                     HttpServletRequest request) throws IOException {
+    @PostMapping(value = "/{id}", consumes = {"image/bmp", "image/png"})
+    public WebAsyncTask<Void> save(@PathVariable String id,
+                                   @RequestParam @Min(0) @Max(20000) int x,
+                                   @RequestParam @Min(0) @Max(50000) int y,
+                                   @RequestParam @Min(1) @Max(5000) int width,
+                                   @RequestParam @Min(1) @Max(5000) int height,
+                                   HttpServletRequest request) {
+
+        service.checkId(id);
+        return executors.submit((long) width * height, () -> {
+            service.save(id, x, y, width, height, request.getInputStream());
+            return null;
+        });
+    }
+
+    @PostMapping(value = "/{id}/batch", consumes = "application/octet-stream")
+    public WebAsyncTask<List<FragmentResult>> saveBatch(@PathVariable String id,
+                                                        HttpServletRequest request) {
+
+        service.checkId(id);
+        return executors.submit(Long.MAX_VALUE, () -> service.saveBatch(id, request.getInputStream()));
+    }
+
+    @PostMapping("/{id}/copy")
+    public WebAsyncTask<Void> copy(@PathVariable String id,
+                                   @RequestParam String source,
+                                   @RequestParam @Min(0) @Max(20000) int sourceX,
+                                   @RequestParam @Min(0) @Max(50000) int sourceY,
+                                   @RequestParam @Min(0) @Max(20000) int x,
+                                   @RequestParam @Min(0) @Max(50000) int y,
+                                   @RequestParam @Min(1) @Max(20000) int width,
+                                   @RequestParam @Min(1) @Max(50000) int height) {
 
+        service.checkId(source);
         service.checkId(id);
-        service.save(id, x, y, width, height, request.getInputStream());
+        return executors.submit((long) width * height, () -> {
+            service.copy(source, sourceX, sourceY, id, x, y, width, height);
+            return null;
+        });
+    }
+
+    @GetMapping(value = "/{id}", produces = {"image/bmp", "image/png", "application/octet-stream"})
+    public WebAsyncTask<Void> get(@PathVariable String id,
+                                  @RequestParam @Min(0) @Max(20000) int x,
+                                  @RequestParam @Min(0) @Max(50000) int y,
+                                  @RequestParam @Min(1) @Max(5000) int width,
+                                  @RequestParam @Min(1) @Max(5000) int height,
+                                  @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept,
+                                  HttpServletRequest request,
+                                  HttpServletResponse response) {
 
+        service.checkId(id);
+        ImageFormat format = negotiate(accept);
+        return executors.submit((long) width * height, () -> {
+            response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+            if (new ServletWebRequest(request, response).checkNotModified(service.etag(id, y, height, format))) {
+                return null;
+            }
+            response.setContentType(format.getContentType());
+            service.get(id, x, y, width, height, format, response.getOutputStream());
+            return null;
+        });
     }
 
-    @GetMapping(value = "/{id}", produces = "image/bmp")
-    public ByteArrayResource get(@PathVariable String id,
-                                 @RequestParam @Min(0) @Max(20000) int x,
-                                 @RequestParam @Min(0) @Max(50000) int y,
-                                 @RequestParam @Min(1) @Max(5000) int width,
-                                 @RequestParam @Min(1) @Max(5000) int height) throws IOException {
+    @GetMapping(value = "/{id}/preview", produces = {"image/bmp", "image/png", "application/octet-stream"})
+    public WebAsyncTask<Void> preview(@PathVariable String id,
+                                      @RequestParam @Min(2) @Max(65536) int scale,
+                                      @RequestParam(defaultValue = "0") @Min(0) @Max(25000) int x,
+                                      @RequestParam(defaultValue = "0") @Min(0) @Max(25000) int y,
+                                      @RequestParam(defaultValue = "5000") @Min(1) @Max(5000) int width,
+                                      @RequestParam(defaultValue = "5000") @Min(1) @Max(5000) int height,
+                                      @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept,
+                                      HttpServletResponse response) {
 
         service.checkId(id);
-        return service.get(id, x, y, width, height);
+        ImageFormat format = negotiate(accept);
+        return executors.submit((long) width * height, () -> {
+            response.setContentType(format.getContentType());
+            service.preview(id, scale, x, y, width, height, format, response.getOutputStream());
+            return null;
+        });
     }
 
     @DeleteMapping("/{id}")
-    public void delete(@PathVariable String id) throws IOException {
+    public WebAsyncTask<Void> delete(@PathVariable String id) {
         service.checkId(id);
-        service.delete(Config.pathToContent + File.separator + id);
+        return executors.submit(0, () -> {
+            service.delete(id);
+            return null;
+        });
+    }
+
+    /**
+     * Picks the most preferred format the client accepts; BMP when it has no preference.
+     */
+    private static ImageFormat negotiate(String accept) {
+        if (accept == null || accept.isBlank()) {
+            return ImageFormat.BMP;
+        }
+        List<MediaType> types = MediaType.parseMediaTypes(accept);
+        MediaType.sortBySpecificityAndQuality(types);
+        for (MediaType type : types) {
+            for (ImageFormat format : ImageFormat.values()) {
+                if (type.includes(MediaType.parseMediaType(format.getContentType()))) {
+                    return format;
+                }
+            }
+        }
+        return ImageFormat.BMP;
     }
 }
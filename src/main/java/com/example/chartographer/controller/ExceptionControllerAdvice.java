@@ -2,6 +2,7 @@ package com.example.chartographer.controller;
 
 import com.example.chartographer.exception.BadRequestException;
 import com.example.chartographer.exception.NotFoundException;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.ControllerAdvice;
@@ -9,6 +10,7 @@ import org.springframework.web.bind.annotation.ExceptionHandler;
 
 import javax.validation.ConstraintViolationException;
 import java.io.IOException;
+import java.util.concurrent.RejectedExecutionException;
 
 @ControllerAdvice
 public class ExceptionControllerAdvice {
@@ -28,6 +30,12 @@ public class ExceptionControllerAdvice {
         return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(e.getMessage());
     }
 
+    @ExceptionHandler(RejectedExecutionException.class)
+    public ResponseEntity<String> handleRejectedExecutionException(RejectedExecutionException e) {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, "1")
+                .body("Server is busy, retry later");
+    }
+
     @ExceptionHandler(IOException.class)
     public ResponseEntity<String> handleException(IOException e) {
         return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(e.getMessage());
@@ -0,0 +1,55 @@
+package com.example.chartographer.controller;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.WebAsyncTask;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.Callable;
+
+/**
+ * Bounded executors that run charta I/O off the servlet container threads.
+ * Fragments of at least {@code chartographer.io.large-fragment-pixels} pixels go to the bulk lane,
+ * everything else to the quick lane, so a few large transfers cannot hold up small ones.
+ * A full queue rejects the task, which is answered with 503.
+ */
+@Component
+public class IoExecutors {
+
+    private final ThreadPoolTaskExecutor quick;
+    private final ThreadPoolTaskExecutor bulk;
+    private final long largeFragmentPixels;
+    private final long timeout;
+
+    public IoExecutors(@Value("${chartographer.io.quick-threads:8}") int quickThreads,
+                       @Value("${chartographer.io.bulk-threads:4}") int bulkThreads,
+                       @Value("${chartographer.io.queue-capacity:64}") int queueCapacity,
+                       @Value("${chartographer.io.large-fragment-pixels:1000000}") long largeFragmentPixels,
+                       @Value("${chartographer.io.timeout:600000}") long timeout) {
+        this.quick = executor("charta-quick-", quickThreads, queueCapacity);
+        this.bulk = executor("charta-bulk-", bulkThreads, queueCapacity);
+        this.largeFragmentPixels = largeFragmentPixels;
+        this.timeout = timeout;
+    }
+
+    public <T> WebAsyncTask<T> submit(long pixels, Callable<T> task) {
+        return new WebAsyncTask<>(timeout, pixels >= largeFragmentPixels ? bulk : quick, task);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        quick.shutdown();
+        bulk.shutdown();
+    }
+
+    private static ThreadPoolTaskExecutor executor(String prefix, int threads, int queueCapacity) {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setThreadNamePrefix(prefix);
+        executor.setCorePoolSize(threads);
+        executor.setMaxPoolSize(threads);
+        executor.setQueueCapacity(queueCapacity);
+        executor.initialize();
+        return executor;
+    }
+}
@@ -0,0 +1,34 @@
+package com.example.chartographer.controller;
+
+import com.example.chartographer.exception.NotFoundException;
+import com.example.chartographer.storage.CacheStats;
+import com.example.chartographer.storage.CachingChartaStore;
+import com.example.chartographer.storage.StorageStats;
+import com.example.chartographer.storage.TiledChartaStore;
+import lombok.RequiredArgsConstructor;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.io.IOException;
+import java.util.Optional;
+
+@RestController
+@RequestMapping("/stats")
+@RequiredArgsConstructor
+public class StatsController {
+
+    private final CachingChartaStore cache;
+
+    private final Optional<TiledChartaStore> tiles;
+
+    @GetMapping("/cache")
+    public CacheStats cache() {
+        return cache.getStats();
+    }
+
+    @GetMapping("/storage")
+    public StorageStats storage() throws IOException {
+        return tiles.orElseThrow(() -> new NotFoundException("Storage is not tiled")).getStats();
+    }
+}
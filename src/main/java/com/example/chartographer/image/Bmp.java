@@ -0,0 +1,58 @@
+package com.example.chartographer.image;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+public final class Bmp {
+
+    public static final int HEADER_SIZE = 54;
+
+    public static final short SIGNATURE = 0x4D42;
+
+    public static final int WIDTH_OFFSET = 18;
+
+    public static final int HEIGHT_OFFSET = 22;
+
+    public static final int DATA_OFFSET = 10;
+
+    public static final int BITS_OFFSET = 28;
+
+    private Bmp() {
+    }
+
+    public static int rowSize(int width) {
+        return width * 3 + width % 4;
+    }
+
+    public static byte[] header(int width, int height) {
+        int size = width * height * 3 + height * (width % 4);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        header.putShort(SIGNATURE);
+        header.putInt(size + HEADER_SIZE);
+        header.putShort((short) 0);
+        header.putShort((short) 0);
+        header.putInt(HEADER_SIZE);
+        header.putInt(40);
+        header.putInt(width);
+        header.putInt(height);
+        header.putShort((short) 1);
+        header.putShort((short) 24);
+        header.putInt(0);
+        header.putInt(size);
+        header.putInt(0);
+        header.putInt(0);
+        header.putInt(0);
+        header.putInt(0);
+        header.flip();
+        return header.array();
+    }
+
+    public static short readShort(byte[] header, int offset) {
+        return ByteBuffer.wrap(header, offset, 2).order(ByteOrder.LITTLE_ENDIAN).getShort();
+    }
+
+    public static int readInt(byte[] header, int offset) {
+        return ByteBuffer.wrap(header, offset, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
+    }
+}
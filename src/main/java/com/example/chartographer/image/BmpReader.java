@@ -0,0 +1,104 @@
+package com.example.chartographer.image;
+
+import com.example.chartographer.exception.BadRequestException;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads an uncompressed 24-bit or 32-bit BMP image row by row from a stream, holding a single row in memory.
+ * Rows come bottom row first unless the height in the header is negative.
+ */
+public class BmpReader implements ImageReader {
+
+    private static final int COMPRESSION_OFFSET = 30;
+    private static final int BI_RGB = 0;
+    private static final int BI_BITFIELDS = 3;
+
+    private final InputStream stream;
+    private final int width;
+    private final int height;
+    private final boolean bottomUp;
+    private final int bytesPerPixel;
+    private final byte[] data;
+    private final byte[] row;
+
+    public BmpReader(InputStream stream) throws IOException {
+        this.stream = stream;
+        byte[] header = readFully(new byte[Bmp.HEADER_SIZE]);
+        int bits = Bmp.readShort(header, Bmp.BITS_OFFSET);
+        int compression = Bmp.readInt(header, COMPRESSION_OFFSET);
+        if (Bmp.readShort(header, 0) != Bmp.SIGNATURE || bits != 24 && bits != 32) {
+            throw new BadRequestException("Fragment must be a 24-bit or 32-bit BMP image");
+        }
+        int consumed = Bmp.HEADER_SIZE;
+        if (bits == 32 && compression == BI_BITFIELDS) {
+            byte[] masks = readFully(new byte[12]);
+            consumed += masks.length;
+            if (Bmp.readInt(masks, 0) != 0xFF0000 || Bmp.readInt(masks, 4) != 0xFF00 || Bmp.readInt(masks, 8) != 0xFF) {
+                throw new BadRequestException("Fragment has unsupported BMP color masks");
+            }
+        } else if (compression != BI_RGB) {
+            throw new BadRequestException("Fragment must be an uncompressed BMP image");
+        }
+        int height = Bmp.readInt(header, Bmp.HEIGHT_OFFSET);
+        this.width = Bmp.readInt(header, Bmp.WIDTH_OFFSET);
+        this.height = Math.abs(height);
+        this.bottomUp = height > 0;
+        if (width <= 0 || width > MAX_SIZE || this.height <= 0 || this.height > MAX_SIZE) {
+            throw new BadRequestException("Fragment has wrong size");
+        }
+        skip(Math.max(Bmp.readInt(header, Bmp.DATA_OFFSET) - consumed, 0));
+        this.bytesPerPixel = bits / 8;
+        this.data = bits == 24 ? new byte[Bmp.rowSize(width)] : new byte[width * 4];
+        this.row = bits == 24 ? data : new byte[width * 3];
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public boolean isBottomUp() {
+        return bottomUp;
+    }
+
+    @Override
+    public byte[] readRow() throws IOException {
+        readFully(data);
+        if (bytesPerPixel == 4) {
+            for (int i = 0, j = 0; i < row.length; i += 3, j += 4) {
+                row[i] = data[j];
+                row[i + 1] = data[j + 1];
+                row[i + 2] = data[j + 2];
+            }
+        }
+        return row;
+    }
+
+    private void skip(long length) throws IOException {
+        while (length > 0) {
+            long skipped = stream.skip(length);
+            if (skipped <= 0) {
+                if (stream.read() < 0) {
+                    throw new BadRequestException("Fragment is truncated");
+                }
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+    }
+
+    private byte[] readFully(byte[] buffer) throws IOException {
+        if (stream.readNBytes(buffer, 0, buffer.length) < buffer.length) {
+            throw new BadRequestException("Fragment is truncated");
+        }
+        return buffer;
+    }
+}
@@ -0,0 +1,33 @@
+package com.example.chartographer.image;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+public class BmpWriter implements ImageWriter {
+
+    private final OutputStream out;
+    private final int width;
+    private final byte[] padding;
+
+    public BmpWriter(OutputStream out, int width, int height) throws IOException {
+        this.out = out;
+        this.width = width;
+        this.padding = new byte[Bmp.rowSize(width) - width * 3];
+        out.write(Bmp.header(width, height));
+    }
+
+    @Override
+    public boolean isBottomUp() {
+        return true;
+    }
+
+    @Override
+    public void writeRow(byte[] row) throws IOException {
+        out.write(row, 0, width * 3);
+        out.write(padding);
+    }
+
+    @Override
+    public void finish() {
+    }
+}
@@ -0,0 +1,37 @@
+package com.example.chartographer.image;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encodings a fragment can be returned in.
+ */
+@Getter
+@RequiredArgsConstructor
+public enum ImageFormat {
+
+    BMP("image/bmp"),
+
+    PNG("image/png"),
+
+    /**
+     * Headerless RGB rows, top row first, without padding.
+     */
+    RAW("application/octet-stream");
+
+    private final String contentType;
+
+    public ImageWriter writer(OutputStream out, int width, int height) throws IOException {
+        switch (this) {
+            case PNG:
+                return new PngWriter(out, width, height);
+            case RAW:
+                return new RawWriter(out, width);
+            default:
+                return new BmpWriter(out, width, height);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.example.chartographer.image;
+
+import com.example.chartographer.exception.BadRequestException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.Arrays;
+
+/**
+ * Streaming decoder of an uploaded fragment, producing one row of {@code width * 3} BGR bytes at a time.
+ */
+public interface ImageReader extends Closeable {
+
+    /**
+     * Largest width and height a decoder accepts, the largest side of a charta; checked before any row buffer
+     * is allocated, so a forged header cannot exhaust the heap.
+     */
+    int MAX_SIZE = 50000;
+
+    int getWidth();
+
+    int getHeight();
+
+    /**
+     * Whether rows come bottom row first.
+     */
+    boolean isBottomUp();
+
+    /**
+     * Reads the next row into a buffer that is reused by the following call; pixels start at index 0.
+     */
+    byte[] readRow() throws IOException;
+
+    /**
+     * Releases the native resources of the decoder; the stream itself is left open.
+     */
+    @Override
+    default void close() {
+    }
+
+    /**
+     * Picks the decoder by the signature of the image.
+     */
+    static ImageReader open(InputStream stream) throws IOException {
+        PushbackInputStream in = new PushbackInputStream(stream, PngReader.SIGNATURE.length);
+        byte[] signature = in.readNBytes(PngReader.SIGNATURE.length);
+        in.unread(signature);
+        if (signature.length >= 2 && signature[0] == 'B' && signature[1] == 'M') {
+            return new BmpReader(in);
+        }
+        if (Arrays.equals(signature, PngReader.SIGNATURE)) {
+            return new PngReader(in);
+        }
+        throw new BadRequestException("Fragment must be a BMP or PNG image");
+    }
+}
@@ -0,0 +1,30 @@
+package com.example.chartographer.image;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Streaming encoder of an image, fed one row of {@code width * 3} BGR bytes at a time.
+ */
+public interface ImageWriter extends Closeable {
+
+    /**
+     * Whether rows are expected bottom row first.
+     */
+    boolean isBottomUp();
+
+    void writeRow(byte[] row) throws IOException;
+
+    /**
+     * Writes whatever the format needs after the last row. Does not close the underlying stream.
+     */
+    void finish() throws IOException;
+
+    /**
+     * Releases the native resources of the encoder, whether or not the image was finished;
+     * the stream itself is left open.
+     */
+    @Override
+    default void close() {
+    }
+}
@@ -0,0 +1,74 @@
+package com.example.chartographer.image;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Composes rectangles of one {@link PixelRaster} into another, one bulk copy per row and no allocation.
+ */
+public final class PixelBlitter {
+
+    private PixelBlitter() {
+    }
+
+    /**
+     * Copies the {@code width * height} rectangle at ({@code srcX}, {@code srcY}) of {@code src} to
+     * ({@code dstX}, {@code dstY}) of {@code dst}, clipped to both rasters; coordinates may be negative.
+     * Coordinates are top-down whatever the row order of the rasters, so copying between rasters of
+     * different order flips the rows. Positions and limits of the buffers are left as they were.
+     *
+     * @return number of rows copied
+     */
+    public static int blit(PixelRaster src, int srcX, int srcY, PixelRaster dst, int dstX, int dstY,
+                           int width, int height) {
+        int shiftX = Math.max(Math.max(-srcX, -dstX), 0);
+        int shiftY = Math.max(Math.max(-srcY, -dstY), 0);
+        srcX += shiftX;
+        dstX += shiftX;
+        srcY += shiftY;
+        dstY += shiftY;
+        width = Math.min(width - shiftX, Math.min(src.getWidth() - srcX, dst.getWidth() - dstX));
+        height = Math.min(height - shiftY, Math.min(src.getHeight() - srcY, dst.getHeight() - dstY));
+        if (width <= 0 || height <= 0) {
+            return 0;
+        }
+
+        int length = width * 3;
+        ByteBuffer from = src.getBuffer();
+        ByteBuffer to = dst.getBuffer();
+        boolean reverse = from == to && dst.offset(dstX, dstY) > src.offset(srcX, srcY);
+        if (from.hasArray() && to.hasArray()) {
+            byte[] a = from.array();
+            byte[] b = to.array();
+            int aOffset = from.arrayOffset();
+            int bOffset = to.arrayOffset();
+            for (int k = 0; k < height; k++) {
+                int i = reverse ? height - 1 - k : k;
+                System.arraycopy(a, aOffset + src.offset(srcX, srcY + i), b, bOffset + dst.offset(dstX, dstY + i),
+                        length);
+            }
+            return height;
+        }
+
+        if (from == to) {
+            from = from.duplicate();
+        }
+        int fromPosition = from.position();
+        int fromLimit = from.limit();
+        int toPosition = to.position();
+        int toLimit = to.limit();
+        try {
+            to.limit(to.capacity());
+            for (int k = 0; k < height; k++) {
+                int i = reverse ? height - 1 - k : k;
+                int start = src.offset(srcX, srcY + i);
+                from.limit(start + length).position(start);
+                to.position(dst.offset(dstX, dstY + i));
+                to.put(from);
+            }
+        } finally {
+            from.limit(fromLimit).position(fromPosition);
+            to.limit(toLimit).position(toPosition);
+        }
+        return height;
+    }
+}
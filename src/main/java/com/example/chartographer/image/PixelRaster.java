@@ -0,0 +1,47 @@
+package com.example.chartographer.image;
+
+import lombok.Getter;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Rectangle of 3-byte pixels laid out in a buffer: {@code height} rows of {@code stride} bytes starting at
+ * {@code offset}, the bottom row first if {@code bottomUp} is set. The buffer's position and limit are not part of it.
+ */
+@Getter
+public class PixelRaster {
+
+    private final ByteBuffer buffer;
+    private final int offset;
+    private final int width;
+    private final int height;
+    private final int stride;
+    private final boolean bottomUp;
+
+    public PixelRaster(ByteBuffer buffer, int offset, int width, int height, int stride, boolean bottomUp) {
+        if (width < 0 || height < 0 || stride < width * 3 || offset < 0
+                || offset + (long) stride * Math.max(height - 1, 0) + width * 3L > buffer.capacity()) {
+            throw new IllegalArgumentException("Raster does not fit its buffer");
+        }
+        this.buffer = buffer;
+        this.offset = offset;
+        this.width = width;
+        this.height = height;
+        this.stride = stride;
+        this.bottomUp = bottomUp;
+    }
+
+    /**
+     * Tightly packed top-down raster starting at the buffer's position.
+     */
+    public static PixelRaster packed(ByteBuffer buffer, int width, int height) {
+        return new PixelRaster(buffer, buffer.position(), width, height, width * 3, false);
+    }
+
+    /**
+     * Offset in the buffer of pixel {@code x} of row {@code y}, rows counted from the top.
+     */
+    int offset(int x, int y) {
+        return offset + (bottomUp ? height - 1 - y : y) * stride + x * 3;
+    }
+}
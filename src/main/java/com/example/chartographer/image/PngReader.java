@@ -0,0 +1,344 @@
+package com.example.chartographer.image;
+
+import com.example.chartographer.exception.BadRequestException;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Reads a non-interlaced PNG image row by row from a stream, top row first. IDAT chunks are inflated
+ * as they arrive, so only the current and the previous row are held in memory.
+ * Greyscale, RGB and palette images with 8-bit samples and greyscale and RGB images with 16-bit samples
+ * are supported, with or without alpha; alpha is dropped.
+ * Once the last row is read, the rest of the image is checked up to IEND. Truncated or corrupt image data
+ * is rejected as a bad request.
+ */
+public class PngReader implements ImageReader {
+
+    static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    private static final int GREY = 0;
+    private static final int RGB = 2;
+    private static final int PALETTE = 3;
+    private static final int GREY_ALPHA = 4;
+    private static final int RGB_ALPHA = 6;
+
+    private final DataInputStream stream;
+    private final int width;
+    private final int height;
+    private final int colorType;
+    private final int bytesPerSample;
+    private final int bytesPerPixel;
+    private byte[] palette;
+    private final Inflater inflater;
+    private final IdatInputStream idat;
+    private final InputStream pixels;
+    private byte[] current;
+    private byte[] previous;
+    private final byte[] row;
+
+    private int chunkRemaining;
+    private int nextLength;
+    private String nextType;
+    private int rowsRead;
+
+    public PngReader(InputStream stream) throws IOException {
+        this.stream = new DataInputStream(stream);
+        byte[] signature = readFully(new byte[SIGNATURE.length]);
+        if (!Arrays.equals(signature, SIGNATURE)) {
+            throw new BadRequestException("Fragment must be a PNG image");
+        }
+        if (readInt() != 13 || !"IHDR".equals(readType())) {
+            throw new BadRequestException("Fragment has a broken PNG header");
+        }
+        this.width = readInt();
+        this.height = readInt();
+        int bitDepth = readByte();
+        this.colorType = readByte();
+        int compression = readByte();
+        int filter = readByte();
+        int interlace = readByte();
+        skip(4);
+        if (width <= 0 || width > MAX_SIZE || height <= 0 || height > MAX_SIZE) {
+            throw new BadRequestException("Fragment has wrong size");
+        }
+        if (compression != 0 || filter != 0 || interlace != 0) {
+            throw new BadRequestException("Only non-interlaced PNG images are supported");
+        }
+        if (bitDepth != 8 && (bitDepth != 16 || colorType == PALETTE)) {
+            throw new BadRequestException("PNG images must have 8-bit or 16-bit samples");
+        }
+        int channels;
+        switch (colorType) {
+            case GREY:
+            case PALETTE:
+                channels = 1;
+                break;
+            case GREY_ALPHA:
+                channels = 2;
+                break;
+            case RGB:
+                channels = 3;
+                break;
+            case RGB_ALPHA:
+                channels = 4;
+                break;
+            default:
+                throw new BadRequestException("Fragment has unsupported PNG color type");
+        }
+        this.bytesPerSample = bitDepth / 8;
+        this.bytesPerPixel = channels * bytesPerSample;
+        this.current = new byte[width * bytesPerPixel];
+        this.previous = new byte[width * bytesPerPixel];
+        this.row = new byte[width * 3];
+
+        while (true) {
+            int length = readInt();
+            String type = readType();
+            if (length < 0) {
+                throw new BadRequestException("Fragment has a broken PNG chunk");
+            }
+            if ("IDAT".equals(type)) {
+                chunkRemaining = length;
+                break;
+            }
+            if ("PLTE".equals(type)) {
+                if (length < 0 || length > 256 * 3) {
+                    throw new BadRequestException("Fragment has a broken PNG palette");
+                }
+                palette = readFully(new byte[length]);
+                skip(4);
+            } else if ("IEND".equals(type)) {
+                throw new BadRequestException("Fragment is truncated");
+            } else {
+                skip(length + 4L);
+            }
+        }
+        if (colorType == PALETTE && palette == null) {
+            throw new BadRequestException("Fragment has no PNG palette");
+        }
+        this.inflater = new Inflater();
+        this.idat = new IdatInputStream();
+        this.pixels = new InflaterInputStream(idat, inflater, 1 << 16);
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public boolean isBottomUp() {
+        return false;
+    }
+
+    @Override
+    public byte[] readRow() throws IOException {
+        byte[] swap = previous;
+        previous = current;
+        current = swap;
+        int filter;
+        try {
+            filter = pixels.read();
+            if (filter < 0 || pixels.readNBytes(current, 0, current.length) < current.length) {
+                throw new BadRequestException("Fragment is truncated");
+            }
+        } catch (EOFException e) {
+            throw new BadRequestException("Fragment is truncated");
+        } catch (ZipException e) {
+            throw new BadRequestException("Fragment has broken PNG data");
+        }
+        unfilter(filter);
+
+        for (int i = 0, j = 0; i < row.length; i += 3, j += bytesPerPixel) {
+            switch (colorType) {
+                case GREY:
+                case GREY_ALPHA:
+                    row[i] = row[i + 1] = row[i + 2] = current[j];
+                    break;
+                case PALETTE: {
+                    int index = (current[j] & 0xFF) * 3;
+                    if (index + 3 > palette.length) {
+                        throw new BadRequestException("Fragment has a broken PNG palette");
+                    }
+                    row[i] = palette[index + 2];
+                    row[i + 1] = palette[index + 1];
+                    row[i + 2] = palette[index];
+                    break;
+                }
+                default:
+                    row[i] = current[j + 2 * bytesPerSample];
+                    row[i + 1] = current[j + bytesPerSample];
+                    row[i + 2] = current[j];
+            }
+        }
+        if (++rowsRead == height) {
+            readEnd();
+        }
+        return row;
+    }
+
+    @Override
+    public void close() {
+        inflater.end();
+    }
+
+    /**
+     * Reads the end of the compressed data, the rest of the IDAT chunks and the chunks after them up to IEND.
+     */
+    private void readEnd() throws IOException {
+        try {
+            if (pixels.read() >= 0) {
+                throw new BadRequestException("Fragment has broken PNG data");
+            }
+        } catch (EOFException e) {
+            throw new BadRequestException("Fragment is truncated");
+        } catch (ZipException e) {
+            throw new BadRequestException("Fragment has broken PNG data");
+        }
+        // the inflater may stop short of the end of the last IDAT chunk
+        byte[] buffer = new byte[1 << 12];
+        while (idat.read(buffer, 0, buffer.length) >= 0) {
+            continue;
+        }
+        int length = nextLength;
+        String type = nextType;
+        while (!"IEND".equals(type)) {
+            skip(length + 4L);
+            length = readInt();
+            type = readType();
+            if (length < 0) {
+                throw new BadRequestException("Fragment has a broken PNG chunk");
+            }
+        }
+        skip(4);
+    }
+
+    private void unfilter(int filter) {
+        int bpp = bytesPerPixel;
+        switch (filter) {
+            case 0:
+                break;
+            case 1:
+                for (int i = bpp; i < current.length; i++) {
+                    current[i] += current[i - bpp];
+                }
+                break;
+            case 2:
+                for (int i = 0; i < current.length; i++) {
+                    current[i] += previous[i];
+                }
+                break;
+            case 3:
+                for (int i = 0; i < current.length; i++) {
+                    int left = i >= bpp ? current[i - bpp] & 0xFF : 0;
+                    current[i] += (left + (previous[i] & 0xFF)) / 2;
+                }
+                break;
+            case 4:
+                for (int i = 0; i < current.length; i++) {
+                    int a = i >= bpp ? current[i - bpp] & 0xFF : 0;
+                    int b = previous[i] & 0xFF;
+                    int c = i >= bpp ? previous[i - bpp] & 0xFF : 0;
+                    int p = a + b - c;
+                    int pa = Math.abs(p - a);
+                    int pb = Math.abs(p - b);
+                    int pc = Math.abs(p - c);
+                    current[i] += pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+                }
+                break;
+            default:
+                throw new BadRequestException("Fragment has a broken PNG filter");
+        }
+    }
+
+    private int readInt() throws IOException {
+        try {
+            return stream.readInt();
+        } catch (EOFException e) {
+            throw new BadRequestException("Fragment is truncated");
+        }
+    }
+
+    private int readByte() throws IOException {
+        int value = stream.read();
+        if (value < 0) {
+            throw new BadRequestException("Fragment is truncated");
+        }
+        return value;
+    }
+
+    private String readType() throws IOException {
+        return new String(readFully(new byte[4]), StandardCharsets.US_ASCII);
+    }
+
+    private byte[] readFully(byte[] buffer) throws IOException {
+        if (stream.readNBytes(buffer, 0, buffer.length) < buffer.length) {
+            throw new BadRequestException("Fragment is truncated");
+        }
+        return buffer;
+    }
+
+    private void skip(long length) throws IOException {
+        while (length > 0) {
+            long skipped = stream.skip(length);
+            if (skipped <= 0) {
+                readByte();
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+    }
+
+    /**
+     * Data of consecutive IDAT chunks as one stream; ends at the first other chunk.
+     */
+    private class IdatInputStream extends InputStream {
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (chunkRemaining == 0) {
+                PngReader.this.skip(4);
+                int length = readInt();
+                String type = readType();
+                if (length < 0) {
+                    throw new BadRequestException("Fragment has a broken PNG chunk");
+                }
+                if (!"IDAT".equals(type)) {
+                    chunkRemaining = -1;
+                    nextLength = length;
+                    nextType = type;
+                    return -1;
+                }
+                chunkRemaining = length;
+            }
+            if (chunkRemaining < 0) {
+                return -1;
+            }
+            int read = stream.read(b, off, Math.min(len, chunkRemaining));
+            if (read < 0) {
+                throw new BadRequestException("Fragment is truncated");
+            }
+            chunkRemaining -= read;
+            return read;
+        }
+    }
+}
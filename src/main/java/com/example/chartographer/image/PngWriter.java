@@ -0,0 +1,93 @@
+package com.example.chartographer.image;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * 24-bit PNG encoder. Rows are deflated as they come and flushed as IDAT chunks of at most
+ * {@value #CHUNK_SIZE} bytes, so memory stays bounded whatever the image size.
+ */
+public class PngWriter implements ImageWriter {
+
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    private static final int CHUNK_SIZE = 1 << 16;
+
+    private final OutputStream out;
+    private final Deflater deflater;
+    private final DeflaterOutputStream idat;
+    private final byte[] line;
+
+    public PngWriter(OutputStream out, int width, int height) throws IOException {
+        this.out = out;
+        this.line = new byte[1 + width * 3];
+        out.write(SIGNATURE);
+        ByteBuffer header = ByteBuffer.allocate(13).putInt(width).putInt(height)
+                .put((byte) 8).put((byte) 2).put((byte) 0).put((byte) 0).put((byte) 0);
+        writeChunk("IHDR", header.array(), header.capacity());
+        this.deflater = new Deflater(Deflater.BEST_SPEED);
+        this.idat = new DeflaterOutputStream(new ChunkOutputStream(), deflater, CHUNK_SIZE);
+    }
+
+    @Override
+    public boolean isBottomUp() {
+        return false;
+    }
+
+    @Override
+    public void writeRow(byte[] row) throws IOException {
+        for (int i = 1; i < line.length; i += 3) {
+            line[i] = row[i + 1];
+            line[i + 1] = row[i];
+            line[i + 2] = row[i - 1];
+        }
+        idat.write(line);
+    }
+
+    @Override
+    public void finish() throws IOException {
+        idat.finish();
+        writeChunk("IEND", new byte[0], 0);
+    }
+
+    @Override
+    public void close() {
+        deflater.end();
+    }
+
+    private void writeChunk(String type, byte[] data, int length) throws IOException {
+        byte[] name = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(name);
+        crc.update(data, 0, length);
+        out.write(ByteBuffer.allocate(4).putInt(length).array());
+        out.write(name);
+        out.write(data, 0, length);
+        out.write(ByteBuffer.allocate(4).putInt((int) crc.getValue()).array());
+    }
+
+    /**
+     * Turns every write of the deflater into one IDAT chunk.
+     */
+    private class ChunkOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            writeChunk("IDAT", new byte[]{(byte) b}, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (off != 0) {
+                b = Arrays.copyOfRange(b, off, off + len);
+            }
+            writeChunk("IDAT", b, len);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.example.chartographer.image;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+public class RawWriter implements ImageWriter {
+
+    private final OutputStream out;
+    private final byte[] rgb;
+
+    public RawWriter(OutputStream out, int width) {
+        this.out = out;
+        this.rgb = new byte[width * 3];
+    }
+
+    @Override
+    public boolean isBottomUp() {
+        return false;
+    }
+
+    @Override
+    public void writeRow(byte[] row) throws IOException {
+        for (int i = 0; i < rgb.length; i += 3) {
+            rgb[i] = row[i + 2];
+            rgb[i + 1] = row[i + 1];
+            rgb[i + 2] = row[i];
+        }
+        out.write(rgb);
+    }
+
+    @Override
+    public void finish() {
+    }
+}
@@ -0,0 +1,44 @@
+package com.example.chartographer.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Component;
+
+/**
+ * Timers of the phases every charta operation goes through, tagged by operation, phase and fragment size,
+ * and counters of the pixel bytes moved.
+ */
+@Component
+@RequiredArgsConstructor
+public class ChartaMetrics {
+
+    private static final long SMALL_PIXELS = 256 * 256;
+    private static final long LARGE_PIXELS = 1_000_000;
+
+    private final MeterRegistry registry;
+
+    public Timer.Sample start() {
+        return Timer.start(registry);
+    }
+
+    /**
+     * Records the time since {@code sample} as {@code phase} of {@code operation} and restarts it for the next phase.
+     */
+    public Timer.Sample next(Timer.Sample sample, String operation, String phase, long pixels) {
+        sample.stop(Timer.builder("chartographer.phase")
+                .tag("operation", operation)
+                .tag("phase", phase)
+                .tag("size", sizeBucket(pixels))
+                .register(registry));
+        return start();
+    }
+
+    public void bytes(String operation, long bytes) {
+        registry.counter("chartographer.bytes", "operation", operation).increment(bytes);
+    }
+
+    private static String sizeBucket(long pixels) {
+        return pixels <= SMALL_PIXELS ? "small" : pixels <= LARGE_PIXELS ? "medium" : "large";
+    }
+}
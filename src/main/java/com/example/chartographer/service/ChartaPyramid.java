@@ -0,0 +1,129 @@
+package com.example.chartographer.service;
+
+import com.example.chartographer.service.ChartaLockManager.ChartaLock;
+import com.example.chartographer.service.ChartaLockManager.LockRequest;
+import com.example.chartographer.storage.Charta;
+import com.example.chartographer.storage.ChartaStore;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Down-sampled copies of a charta at 1/2, 1/4, 1/8 ... of its size, down to a single pixel.
+ * Every level is stored as a charta of its own and is rebuilt from the level below only where a fragment changed it.
+ */
+@Component
+public class ChartaPyramid {
+
+    private final ChartaStore store;
+    private final ChartaLockManager locks;
+    private final boolean enabled;
+
+    public ChartaPyramid(ChartaStore store, ChartaLockManager locks,
+                         @Value("${chartographer.pyramid.enabled:true}") boolean enabled) {
+        this.store = store;
+        this.locks = locks;
+        this.enabled = enabled;
+    }
+
+    public static String levelId(String id, int level) {
+        return level == 0 ? id : id + ".L" + level;
+    }
+
+    /**
+     * Returns the id of the charta the level belongs to, or {@code null} if {@code id} is not a level.
+     */
+    public static String baseId(String id) {
+        int dot = id.lastIndexOf(".L");
+        if (dot <= 0 || dot + 2 == id.length()) {
+            return null;
+        }
+        for (int i = dot + 2; i < id.length(); i++) {
+            if (!Character.isDigit(id.charAt(i))) {
+                return null;
+            }
+        }
+        return id.substring(0, dot);
+    }
+
+    public void create(String id, int width, int height) throws IOException {
+        if (!enabled) {
+            return;
+        }
+        for (int level = 1; width > 1 || height > 1; level++) {
+            width = (width + 1) / 2;
+            height = (height + 1) / 2;
+            store.create(levelId(id, level), width, height);
+        }
+    }
+
+    /**
+     * Rebuilds every level over the rectangle of level 0 that has just been written.
+     */
+    public void update(String id, int x, int y, int width, int height) throws IOException {
+        for (int level = 1; store.exists(levelId(id, level)); level++) {
+            int right = (x + width + 1) / 2;
+            int bottom = (y + height + 1) / 2;
+            x /= 2;
+            y /= 2;
+            width = right - x;
+            height = bottom - y;
+            downsample(levelId(id, level - 1), levelId(id, level), x, y, width, height);
+        }
+    }
+
+    public void delete(String id) throws IOException {
+        for (int level = 1; store.exists(levelId(id, level)); level++) {
+            int height;
+            try (Charta charta = store.open(levelId(id, level), true)) {
+                height = charta.getHeight();
+            }
+            try (ChartaLock lock = locks.lockAll(levelId(id, level), height, store.getBandHeight())) {
+                store.delete(levelId(id, level));
+            }
+        }
+    }
+
+    private void downsample(String sourceId, String targetId, int x, int y, int width, int height) throws IOException {
+        int bandHeight = store.getBandHeight();
+        int step = Math.max(bandHeight / 2, 1);
+        ByteBuffer source = ByteBuffer.allocate(2 * width * 2 * Math.min(step, height) * 3);
+        ByteBuffer target = ByteBuffer.allocate(width * Math.min(step, height) * 3);
+
+        for (int top = y; top < y + height; ) {
+            int rows = Math.min(step - top % step, y + height - top);
+            try (ChartaLock lock = locks.lock(
+                    new LockRequest(sourceId, 2 * top, 2 * (top + rows), bandHeight, true),
+                    new LockRequest(targetId, top, top + rows, bandHeight, false));
+                 Charta sourceCharta = store.open(sourceId, true);
+                 Charta targetCharta = store.open(targetId, false)) {
+
+                int sourceW = Math.min(2 * width, sourceCharta.getWidth() - 2 * x);
+                int sourceH = Math.min(2 * rows, sourceCharta.getHeight() - 2 * top);
+                source.clear();
+                sourceCharta.read(2 * x, 2 * top, sourceW, sourceH, source);
+                target.clear();
+                for (int row = 0; row < rows; row++) {
+                    for (int col = 0; col < width; col++) {
+                        for (int c = 0; c < 3; c++) {
+                            int sum = 0;
+                            int count = 0;
+                            for (int dy = 0; dy < 2 && 2 * row + dy < sourceH; dy++) {
+                                for (int dx = 0; dx < 2 && 2 * col + dx < sourceW; dx++) {
+                                    sum += source.get(((2 * row + dy) * sourceW + 2 * col + dx) * 3 + c) & 0xFF;
+                                    count++;
+                                }
+                            }
+                            target.put((byte) ((sum + count / 2) / count));
+                        }
+                    }
+                }
+                target.flip();
+                targetCharta.write(x, top, width, rows, target);
+            }
+            top += rows;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.example.chartographer.service;
+
+import com.example.chartographer.service.ChartaLockManager.ChartaLock;
+import com.example.chartographer.storage.Charta;
+import com.example.chartographer.storage.ChartaStore;
+import com.example.chartographer.storage.ContentLayout;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Removes deleted chartas in the background. A delete only tombstones the charta, so that it is gone for every
+ * new request at once; the reaper then waits for the requests still holding its bands, deletes its files
+ * and its pyramid and drops the tombstone.
+ * <p>
+ * Tombstones are kept as empty files, so a removal cut short by a restart is finished at the next start.
+ * Pyramid levels left without their charta by a crash are removed at start as well.
+ */
+@Slf4j
+@Component
+public class ChartaReaper {
+
+    private final ChartaStore store;
+
+    private final ChartaLockManager locks;
+
+    private final ChartaPyramid pyramid;
+
+    private final FragmentJournal journal;
+
+    private final ContentLayout layout;
+
+    private final ChartaVersions versions;
+
+    private final ChartaMetrics metrics;
+
+    private final Set<String> tombstones = ConcurrentHashMap.newKeySet();
+
+    private final BlockingQueue<String> queue = new LinkedBlockingQueue<>();
+
+    private Path dir;
+
+    private Thread reaper;
+
+    public ChartaReaper(ChartaStore store, ChartaLockManager locks, ChartaPyramid pyramid, FragmentJournal journal,
+                        ContentLayout layout, ChartaVersions versions, ChartaMetrics metrics) {
+        this.store = store;
+        this.locks = locks;
+        this.pyramid = pyramid;
+        this.journal = journal;
+        this.layout = layout;
+        this.versions = versions;
+        this.metrics = metrics;
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        Path home = layout.getHome();
+        if (home != null) {
+            dir = Files.createDirectories(home.resolve(ContentLayout.TOMBSTONES_DIR));
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                for (Path file : files) {
+                    String id = file.getFileName().toString();
+                    tombstones.add(id);
+                    queue.add(id);
+                }
+            }
+        }
+        for (String id : layout.getIds()) {
+            String base = ChartaPyramid.baseId(id);
+            if (base != null && !tombstones.contains(base) && !store.exists(base)) {
+                log.info("Removing pyramid of missing charta {}", base);
+                tombstones.add(base);
+                queue.add(base);
+            }
+        }
+        reaper = new Thread(this::reapLoop, "charta-reaper");
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (reaper == null) {
+            return;
+        }
+        reaper.interrupt();
+        try {
+            reaper.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        reaper = null;
+    }
+
+    /**
+     * Tombstones the charta and queues its removal; returns without waiting for anything.
+     */
+    public void bury(String id) throws IOException {
+        if (!tombstones.add(id)) {
+            return;
+        }
+        if (dir != null) {
+            Files.write(dir.resolve(id), new byte[0]);
+        }
+        queue.add(id);
+    }
+
+    public boolean isBuried(String id) {
+        return tombstones.contains(id);
+    }
+
+    private void reapLoop() {
+        while (!Thread.currentThread().isInterrupted()) {
+            String id;
+            try {
+                id = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                reap(id);
+            } catch (IOException e) {
+                log.error("Failed to remove charta {}, retrying at the next start", id, e);
+            }
+        }
+    }
+
+    private void reap(String id) throws IOException {
+        Timer.Sample sample = metrics.start();
+        journal.release(id);
+        if (store.exists(id)) {
+            int height;
+            try (Charta charta = store.open(id, true)) {
+                height = charta.getHeight();
+            }
+            try (ChartaLock lock = locks.lock(id, 0, height, store.getBandHeight(), false)) {
+                sample = metrics.next(sample, "reap", "lock", 0);
+                store.delete(id);
+            }
+        }
+        pyramid.delete(id);
+        if (dir != null) {
+            Files.deleteIfExists(dir.resolve(id));
+        }
+        versions.forget(id);
+        tombstones.remove(id);
+        metrics.next(sample, "reap", "delete", 0);
+    }
+}
@@ -1,170 +1,572 @@
 package com.example.chartographer.service;
 
-import com.example.chartographer.config.Config;
 import com.example.chartographer.exception.BadRequestException;
 import com.example.chartographer.exception.NotFoundException;
+import com.example.chartographer.image.ImageFormat;
+import com.example.chartographer.image.ImageReader;
+import com.example.chartographer.image.ImageWriter;
+import com.example.chartographer.service.ChartaLockManager.ChartaLock;
+import com.example.chartographer.service.ChartaLockManager.LockRequest;
+import com.example.chartographer.storage.Charta;
+import com.example.chartographer.storage.ChartaStore;
+import io.micrometer.core.instrument.Timer;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
 import lombok.SneakyThrows;
-import org.springframework.core.io.ByteArrayResource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
 
-import java.io.*;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
 import java.util.UUID;
 
 @Service
+@RequiredArgsConstructor
 public class ChartaService {
 
+    private final ChartaStore store;
+
+    private final ChartaLockManager locks;
+
+    private final ChartaPyramid pyramid;
+
+    private final FragmentJournal journal;
+
+    private final ChartaReaper reaper;
+
+    private final ChartaVersions versions;
+
+    private final ParallelBands parallelBands;
+
+    private final ChartaMetrics metrics;
+
+    @Value("${chartographer.batch.max-bytes:268435456}")
+    private long batchMaxBytes;
+
+    @Value("${chartographer.batch.max-pixel-bytes:268435456}")
+    private long batchMaxPixelBytes;
+
     @SneakyThrows
     public String create(int width, int height) {
         String id = UUID.randomUUID().toString();
-        try (FileOutputStream fos = new FileOutputStream(Config.pathToContent + File.separator + id, true)) {
-            fos.write(getBMPHeader(width, height));
-            for (int i = 0; i < height; i++) {
-                byte[] row = new byte[width * 3 + width % 4];
-                fos.write(row);
-            }
-        }
+        store.create(id, width, height);
+        pyramid.create(id, width, height);
         return id;
     }
 
     public void save(String id, int x, int y, int width, int height, InputStream stream) throws IOException {
-        String tmpFile = Config.pathToContent + File.separator + UUID.randomUUID();
-        try {
-            Files.copy(stream, Path.of(tmpFile));
-            try (RandomAccessFile raf = new RandomAccessFile(Config.pathToContent + File.separator + id, "rw");
-                 RandomAccessFile rafTmp = new RandomAccessFile(tmpFile, "r")) {
+        long requested = (long) width * height;
+        Timer.Sample sample = metrics.start();
+        try (ImageReader reader = ImageReader.open(stream)) {
+            sample = metrics.next(sample, "save", "header", requested);
+            if (journal.isEnabled()) {
+                saveToJournal(id, x, y, width, height, reader, sample);
+            } else {
+                saveToCharta(id, x, y, width, height, reader, sample);
+            }
+        }
+    }
 
-                while (raf.getChannel().tryLock() == null) {
-                    waitUnlock(500);
-                    checkId(id);
-                }
+    private void saveToCharta(String id, int x, int y, int width, int height, ImageReader reader,
+                              Timer.Sample sample) throws IOException {
+        long requested = (long) width * height;
+        int fragmentW = reader.getWidth();
+        int fragmentH = reader.getHeight();
 
-                raf.seek(18);
-                int chartaW = readIntLittleEndian(raf);
-                raf.seek(22);
-                int chartaH = readIntLittleEndian(raf);
+        int bandHeight = store.getBandHeight();
+        int pixels;
+        int rows;
+        try (ChartaLock lock = locks.lock(id, y, y + Math.min(height, fragmentH), bandHeight, false);
+             Charta charta = store.open(id, false)) {
 
-                checkXY(x, y, chartaW, chartaH);
+            sample = metrics.next(sample, "save", "lock", requested);
+            checkXY(x, y, charta.getWidth(), charta.getHeight());
 
-                rafTmp.seek(18);
-                int fragmentW = readIntLittleEndian(rafTmp);
-                rafTmp.seek(22);
-                int fragmentH = readIntLittleEndian(rafTmp);
+            pixels = Math.min(Math.min(width, fragmentW), charta.getWidth() - x);
+            rows = Math.min(Math.min(height, fragmentH), charta.getHeight() - y);
+            writeBands(id, charta, reader, x, y, pixels, rows, bandHeight);
+            versions.bump(id, y, y + rows, bandHeight);
+        }
+        sample = metrics.next(sample, "save", "copy", requested);
+        metrics.bytes("save", (long) pixels * rows * 3);
+        pyramid.update(id, x, y, pixels, rows);
+        metrics.next(sample, "save", "pyramid", requested);
+    }
 
-                width = Math.min(width, fragmentW);
-                height = Math.min(height, fragmentH);
+    /**
+     * Writes the clipped rows of the image into the charta band by band, in the order the image delivers them.
+     */
+    private void writeBands(String id, Charta charta, ImageReader reader, int x, int y, int pixels, int rows,
+                            int bandHeight) throws IOException {
+        int[] bounds = bands(y, rows, bandHeight);
+        int count = bounds.length - 1;
+        int slots = parallelBands.slots((long) pixels * rows, count);
+        ByteBuffer[] buffers = new ByteBuffer[slots];
+        boolean bottomUp = reader.isBottomUp();
+        if (bottomUp) {
+            for (int i = reader.getHeight() - 1; i >= rows; i--) {
+                reader.readRow();
+            }
+        }
+        parallelBands.run(id, charta, false, slots, count, (index, slot) -> {
+            int top = bounds[bottomUp ? count - 1 - index : index];
+            int bottom = bounds[bottomUp ? count - index : index + 1];
+            ByteBuffer band = buffer(buffers, slot, pixels * 3 * Math.min(bandHeight, rows));
+            for (int k = 0; k < bottom - top; k++) {
+                int i = bottomUp ? bottom - 1 - k : top + k;
+                System.arraycopy(reader.readRow(), 0, band.array(), (i - top) * pixels * 3, pixels * 3);
+            }
+            return target -> {
+                band.position(0).limit((bottom - top) * pixels * 3);
+                target.write(x, y + top, pixels, bottom - top, band);
+            };
+        });
+    }
 
-                int rowBegin = Math.max(chartaH - y - height, 0);
-                int rows = y + height > chartaH ? chartaH - y : height;
+    /**
+     * Records the clipped fragment in the journal and returns once it is durable there; the charta itself
+     * is updated by the journal applier.
+     */
+    private void saveToJournal(String id, int x, int y, int width, int height, ImageReader reader,
+                               Timer.Sample sample) throws IOException {
+        int pixels;
+        int rows;
+        try (Charta charta = store.open(id, true)) {
+            checkXY(x, y, charta.getWidth(), charta.getHeight());
+            pixels = Math.min(Math.min(width, reader.getWidth()), charta.getWidth() - x);
+            rows = Math.min(Math.min(height, reader.getHeight()), charta.getHeight() - y);
+        }
 
-                for (int i = rowBegin; i < rowBegin + rows; i++) {
-                    raf.seek(54 + (chartaW * 3L + chartaW % 4) * i + x * 3L);
-                    rafTmp.seek(54 + (chartaW * 3L + chartaW % 4) * (Math.max(height + y - chartaH, 0)));
-                    int pixels = x + width > chartaW ? chartaW - x : width;
-                    byte[] row = new byte[3 * pixels];
-                    rafTmp.read(row);
-                    raf.write(row);
+        FragmentJournal.Record record = journal.append(id, x, y, pixels, rows, reader.isBottomUp());
+        try {
+            if (reader.isBottomUp()) {
+                for (int i = reader.getHeight() - 1; i >= rows; i--) {
+                    reader.readRow();
                 }
             }
-        } finally {
-            delete(tmpFile);
+            for (int i = 0; i < rows; i++) {
+                record.write(reader.readRow());
+            }
+        } catch (IOException | RuntimeException e) {
+            journal.abandon(record);
+            throw e;
         }
+        long requested = (long) width * height;
+        sample = metrics.next(sample, "save", "copy", requested);
+        metrics.bytes("save", (long) pixels * rows * 3);
+        journal.commit(record);
+        metrics.next(sample, "save", "journal", requested);
     }
 
-    public ByteArrayResource get(String id, int x, int y, int fragmentW, int fragmentH) throws IOException {
-        byte[] out = Arrays.copyOf(getBMPHeader(fragmentW, fragmentH), 54 + (fragmentW * 3 + fragmentW % 4) * fragmentH);
-        try (RandomAccessFile raf = new RandomAccessFile(Config.pathToContent + File.separator + id, "r")) {
+    /**
+     * Saves a batch of fragments under one lock. The body is a sequence of frames, each made of big-endian
+     * {@code x}, {@code y}, {@code width}, {@code height} and {@code length} ints followed by {@code length} bytes
+     * of BMP or PNG image. Fragments are written in charta row order unless some of them overlap, in which case
+     * the order of the batch is kept so that later fragments win.
+     * Decoded fragments are held in memory until the write; once they add up to
+     * {@code chartographer.batch.max-pixel-bytes}, further fragments are refused with 400.
+     * With the journal enabled each fragment becomes a journal record, applied in the same order;
+     * the records of a batch are made durable by one sync.
+     */
+    public List<FragmentResult> saveBatch(String id, InputStream stream) throws IOException {
+        Timer.Sample sample = metrics.start();
+        int chartaW;
+        int chartaH;
+        try (Charta charta = store.open(id, true)) {
+            chartaW = charta.getWidth();
+            chartaH = charta.getHeight();
+        }
+
+        PushbackInputStream pushback = new PushbackInputStream(stream);
+        DataInputStream in = new DataInputStream(pushback);
+        List<FragmentResult> results = new ArrayList<>();
+        List<Fragment> fragments = new ArrayList<>();
+        long bytes = 0;
+        long decoded = 0;
+        for (int index = 0; hasMore(pushback); index++) {
+            int x = readFrameInt(in);
+            int y = readFrameInt(in);
+            int width = readFrameInt(in);
+            int height = readFrameInt(in);
+            int length = readFrameInt(in);
+            bytes += length;
+            if (length < 0 || bytes > batchMaxBytes) {
+                throw new BadRequestException("Batch is too large");
+            }
+            byte[] image = in.readNBytes(length);
+            if (image.length < length) {
+                throw new BadRequestException("Batch is truncated");
+            }
+            try {
+                Fragment fragment = decode(index, x, y, width, height, image, chartaW, chartaH,
+                        batchMaxPixelBytes - decoded);
+                decoded += fragment.getPixels().capacity();
+                fragments.add(fragment);
+            } catch (BadRequestException e) {
+                results.add(new FragmentResult(index, HttpStatus.BAD_REQUEST.value(), e.getMessage()));
+            }
+        }
+        if (fragments.isEmpty()) {
+            return results;
+        }
+
+        long pixels = fragments.stream().mapToLong(f -> (long) f.getWidth() * f.getHeight()).sum();
+        sample = metrics.next(sample, "batch", "header", pixels);
+        if (!overlap(fragments)) {
+            fragments.sort(Comparator.comparingInt(Fragment::getY).thenComparingInt(Fragment::getX));
+        }
+        if (journal.isEnabled()) {
+            saveToJournal(id, fragments);
+            for (Fragment fragment : fragments) {
+                results.add(new FragmentResult(fragment.getIndex(), HttpStatus.OK.value(), null));
+            }
+            metrics.bytes("batch", pixels * 3);
+            metrics.next(sample, "batch", "journal", pixels);
+            results.sort(Comparator.comparingInt(FragmentResult::getIndex));
+            return results;
+        }
+        int fromRow = fragments.stream().mapToInt(Fragment::getY).min().getAsInt();
+        int toRow = fragments.stream().mapToInt(f -> f.getY() + f.getHeight()).max().getAsInt();
+        int bandHeight = store.getBandHeight();
+        try (ChartaLock lock = locks.lock(id, fromRow, toRow, bandHeight, false);
+             Charta charta = store.open(id, false)) {
+            sample = metrics.next(sample, "batch", "lock", pixels);
+            for (Fragment fragment : fragments) {
+                charta.write(fragment.getX(), fragment.getY(), fragment.getWidth(), fragment.getHeight(),
+                        fragment.getPixels());
+            }
+            versions.bump(id, fromRow, toRow, bandHeight);
+        }
+        sample = metrics.next(sample, "batch", "copy", pixels);
+        metrics.bytes("batch", pixels * 3);
+        for (Fragment fragment : fragments) {
+            pyramid.update(id, fragment.getX(), fragment.getY(), fragment.getWidth(), fragment.getHeight());
+            results.add(new FragmentResult(fragment.getIndex(), HttpStatus.OK.value(), null));
+        }
+        metrics.next(sample, "batch", "pyramid", pixels);
+        results.sort(Comparator.comparingInt(FragmentResult::getIndex));
+        return results;
+    }
 
-            while (raf.getChannel().tryLock(0, Integer.MAX_VALUE, true) == null) {
-                waitUnlock(500);
-                checkId(id);
+    /**
+     * Records every fragment of a batch in the journal and commits them together, so the batch costs one sync.
+     */
+    private void saveToJournal(String id, List<Fragment> fragments) throws IOException {
+        List<FragmentJournal.Record> records = new ArrayList<>();
+        try {
+            for (Fragment fragment : fragments) {
+                FragmentJournal.Record record = journal.append(id, fragment.getX(), fragment.getY(),
+                        fragment.getWidth(), fragment.getHeight(), false);
+                records.add(record);
+                byte[] row = new byte[fragment.getWidth() * 3];
+                for (int i = 0; i < fragment.getHeight(); i++) {
+                    System.arraycopy(fragment.getPixels().array(), i * row.length, row, 0, row.length);
+                    record.write(row);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            for (FragmentJournal.Record record : records) {
+                journal.abandon(record);
             }
+            throw e;
+        }
+        journal.commit(records);
+    }
 
-            raf.seek(18);
-            int chartaW = readIntLittleEndian(raf);
-            raf.seek(22);
-            int chartaH = readIntLittleEndian(raf);
+    /**
+     * Copies the {@code width * height} rectangle at ({@code sourceX}, {@code sourceY}) of the source charta
+     * to ({@code x}, {@code y}) of the target charta, which may be the same one; the rectangle is clipped to both.
+     * Rows go from file to file a band at a time, under one lock over the rows of both chartas.
+     */
+    public void copy(String sourceId, int sourceX, int sourceY, String id, int x, int y, int width, int height)
+            throws IOException {
+        long requested = (long) width * height;
+        Timer.Sample sample = metrics.start();
+        journal.flush(sourceId);
+        journal.flush(id);
 
-            checkXY(x, y, chartaW, chartaH);
+        int bandHeight = store.getBandHeight();
+        int pixels;
+        int rows;
+        try (ChartaLock lock = locks.lock(
+                new LockRequest(sourceId, sourceY, sourceY + height, bandHeight, true),
+                new LockRequest(id, y, y + height, bandHeight, false));
+             Charta source = store.open(sourceId, true);
+             Charta target = store.open(id, false)) {
 
-            int rowBeginRead = y + fragmentH > chartaH ? 0 : chartaH - fragmentH - y;
-            int rows = y + fragmentH > chartaH ? chartaH - y : fragmentH;
-            int rowForWrite = y + fragmentH > chartaH ? y + fragmentH - chartaH : 0;
+            sample = metrics.next(sample, "copy", "lock", requested);
+            checkXY(sourceX, sourceY, source.getWidth(), source.getHeight());
+            checkXY(x, y, target.getWidth(), target.getHeight());
 
-            for (int i = rowBeginRead; i < rowBeginRead + rows; i++) {
-                raf.seek(54 + (chartaW * 3L + chartaW % 4) * i + x * 3L);
-                int pixels = x + fragmentW > chartaW ? chartaW - x : fragmentW;
-                int index = 54 + (fragmentW * 3 + fragmentW % 4) * rowForWrite;
-                raf.read(out, index, 3 * pixels);
-                rowForWrite++;
+            pixels = Math.min(width, Math.min(source.getWidth() - sourceX, target.getWidth() - x));
+            rows = Math.min(height, Math.min(source.getHeight() - sourceY, target.getHeight() - y));
+            int step = Math.min(bandHeight, rows);
+            ByteBuffer band = ByteBuffer.allocate(pixels * 3 * step);
+            // overlap rule: when the target lies below the source in the same charta, the bands go bottom-up, so a
+            // row is always read before a band lands on it; otherwise top-down is safe
+            boolean bottomUp = sourceId.equals(id) && y > sourceY;
+            for (int done = 0; done < rows; done += step) {
+                int count = Math.min(step, rows - done);
+                int top = bottomUp ? rows - done - count : done;
+                band.clear();
+                source.read(sourceX, sourceY + top, pixels, count, band);
+                band.flip();
+                target.write(x, y + top, pixels, count, band);
             }
+            versions.bump(id, y, y + rows, bandHeight);
         }
-        return new ByteArrayResource(out);
+        sample = metrics.next(sample, "copy", "copy", requested);
+        metrics.bytes("copy", (long) pixels * rows * 3);
+        pyramid.update(id, x, y, pixels, rows);
+        metrics.next(sample, "copy", "pyramid", requested);
     }
 
-    public void delete(String fileName) throws IOException {
-        while (!Files.deleteIfExists(Path.of(fileName))) {
-            waitUnlock(500);
-            if (Files.notExists(Path.of(fileName))) {
-                return;
-            }
+    /**
+     * Entity tag of the rows {@code [y, y + height)} of the charta in the given format; it changes whenever
+     * a band they cover is written. Pending journal records are applied first, so a tag never hides
+     * an acknowledged save.
+     */
+    public String etag(String id, int y, int height, ImageFormat format) throws IOException {
+        journal.flush(id);
+        long version = versions.version(id, y, y + height, store.getBandHeight());
+        return "\"" + Long.toHexString(versions.getEpoch()) + "-" + Long.toHexString(version) + "-"
+                + format.name().toLowerCase() + "\"";
+    }
+
+    public void get(String id, int x, int y, int fragmentW, int fragmentH, OutputStream out) throws IOException {
+        get(id, x, y, fragmentW, fragmentH, ImageFormat.BMP, out);
+    }
+
+    public void get(String id, int x, int y, int fragmentW, int fragmentH, ImageFormat format, OutputStream out)
+            throws IOException {
+        journal.flush(id);
+        writeImage("get", id, x, y, fragmentW, fragmentH, false, format, out);
+    }
+
+    /**
+     * Writes a fragment of the charta down-sampled by {@code scale}, clipped to the down-sampled charta.
+     * Coordinates and size are in down-sampled pixels.
+     */
+    public void preview(String id, int scale, int x, int y, int width, int height, OutputStream out)
+            throws IOException {
+        preview(id, scale, x, y, width, height, ImageFormat.BMP, out);
+    }
+
+    public void preview(String id, int scale, int x, int y, int width, int height, ImageFormat format,
+                        OutputStream out) throws IOException {
+        if (Integer.bitCount(scale) != 1) {
+            throw new BadRequestException("Scale must be a power of two");
+        }
+        String levelId = ChartaPyramid.levelId(id, Integer.numberOfTrailingZeros(scale));
+        if (!store.exists(levelId)) {
+            throw new BadRequestException("No preview with scale " + scale);
         }
+        journal.flush(id);
+        writeImage("preview", levelId, x, y, width, height, true, format, out);
+    }
+
+    /**
+     * Tombstones the charta: it is gone for new requests at once, its files are removed by the {@link ChartaReaper}.
+     */
+    public void delete(String id) throws IOException {
+        Timer.Sample sample = metrics.start();
+        reaper.bury(id);
+        metrics.next(sample, "delete", "tombstone", 0);
     }
 
+    /**
+     * Rejects unknown and deleted chartas, and pyramid levels, which are only ever written by the pyramid.
+     */
     public void checkId(String id) {
-        Path path = Path.of(Config.pathToContent, id);
-        if (Files.notExists(path) || !Files.isRegularFile(path)) {
+        if (ChartaPyramid.baseId(id) != null || reaper.isBuried(id) || !store.exists(id)) {
             throw new NotFoundException(id + " not found");
         }
     }
 
-    private byte[] getBMPHeader(int width, int height) {
-        int size = width * height * 3 + height * (width % 4);
-        ByteBuffer header = ByteBuffer.allocate(54);
-        header.order(ByteOrder.LITTLE_ENDIAN);
-        header.putShort((short) 0x4D42);
-        header.putInt(size + 54);
-        header.putShort((short) 0);
-        header.putShort((short) 0);
-        header.putInt(54);
-        header.putInt(40);
-        header.putInt(width);
-        header.putInt(height);
-        header.putShort((short) 1);
-        header.putShort((short) 24);
-        header.putInt(0);
-        header.putInt(size);
-        header.putInt(0);
-        header.putInt(0);
-        header.putInt(0);
-        header.putInt(0);
-        header.flip();
-        return header.array();
+    /**
+     * Streams the fragment band by band in the row order the format wants; the part outside the charta is black.
+     * The bands are read a window of one band per slot at a time, under a shared lock of the window's rows taken
+     * on the request thread and released before the window goes out, so a slow client holds no lock and no band
+     * thread waits on one. A write may therefore land between two windows; the entity tag is taken before the first
+     * band, so such a response carries the tag of the earlier state and the next conditional GET fetches it again.
+     */
+    private void writeImage(String operation, String id, int x, int y, int fragmentW, int fragmentH, boolean clip,
+                            ImageFormat format, OutputStream out) throws IOException {
+        long requested = (long) fragmentW * fragmentH;
+        Timer.Sample sample = metrics.start();
+        int bandHeight = store.getBandHeight();
+        try (Charta charta = store.open(id, true)) {
+
+            sample = metrics.next(sample, operation, "open", requested);
+            checkXY(x, y, charta.getWidth(), charta.getHeight());
+            if (clip) {
+                fragmentW = Math.min(fragmentW, charta.getWidth() - x);
+                fragmentH = Math.min(fragmentH, charta.getHeight() - y);
+            }
+
+            int pixels = Math.min(fragmentW, charta.getWidth() - x);
+            int rows = Math.min(fragmentH, charta.getHeight() - y);
+            int[] bounds = bands(y, rows, bandHeight);
+            int count = bounds.length - 1;
+            int slots = parallelBands.slots((long) pixels * rows, count);
+            ByteBuffer[] buffers = new ByteBuffer[slots];
+            byte[] row = new byte[fragmentW * 3];
+            try (ImageWriter writer = format.writer(out, fragmentW, fragmentH)) {
+                sample = metrics.next(sample, operation, "header", requested);
+
+                boolean bottomUp = writer.isBottomUp();
+                if (bottomUp) {
+                    for (int i = rows; i < fragmentH; i++) {
+                        writer.writeRow(row);
+                    }
+                }
+                // one band per slot is read at a time, under a shared lock taken here rather than on the pool,
+                // and the rows go out once the lock is released
+                for (int first = 0; first < count; first += slots) {
+                    int from = first;
+                    int window = Math.min(slots, count - first);
+                    int top = bounds[bottomUp ? count - from - window : from];
+                    int bottom = bounds[bottomUp ? count - from : from + window];
+                    try (ChartaLock lock = locks.lock(id, y + top, y + bottom, bandHeight, true)) {
+                        parallelBands.run(id, charta, true, slots, window, (index, slot) -> {
+                            int bandTop = bounds[bottomUp ? count - 1 - from - index : from + index];
+                            int bandBottom = bounds[bottomUp ? count - from - index : from + index + 1];
+                            ByteBuffer band = buffer(buffers, slot, pixels * 3 * Math.min(bandHeight, rows));
+                            return source -> {
+                                band.clear();
+                                source.read(x, y + bandTop, pixels, bandBottom - bandTop, band);
+                            };
+                        });
+                    }
+                    for (int index = 0; index < window; index++) {
+                        int bandTop = bounds[bottomUp ? count - 1 - from - index : from + index];
+                        int bandBottom = bounds[bottomUp ? count - from - index : from + index + 1];
+                        for (int k = 0; k < bandBottom - bandTop; k++) {
+                            int i = bottomUp ? bandBottom - 1 - k : bandTop + k;
+                            buffers[index].position((i - bandTop) * pixels * 3);
+                            buffers[index].get(row, 0, pixels * 3);
+                            writer.writeRow(row);
+                        }
+                    }
+                }
+                if (!bottomUp) {
+                    Arrays.fill(row, (byte) 0);
+                    for (int i = rows; i < fragmentH; i++) {
+                        writer.writeRow(row);
+                    }
+                }
+                sample = metrics.next(sample, operation, "copy", requested);
+                metrics.bytes(operation, (long) pixels * rows * 3);
+                writer.finish();
+            }
+        }
+        out.flush();
+        metrics.next(sample, operation, "response", requested);
     }
 
-    private void checkXY(int x, int y, int width, int height) {
-        if (x >= width || y >= height) {
-            throw new BadRequestException("X/Y out of range");
+    /**
+     * Splits rows {@code [y, y + rows)} along the band grid of the store; band {@code i} is rows
+     * {@code [bounds[i], bounds[i + 1])} counted from {@code y}.
+     */
+    private static int[] bands(int y, int rows, int bandHeight) {
+        int count = (y + rows - 1) / bandHeight - y / bandHeight + 1;
+        int[] bounds = new int[count + 1];
+        for (int i = 1; i < count; i++) {
+            bounds[i] = (y / bandHeight + i) * bandHeight - y;
         }
+        bounds[count] = rows;
+        return bounds;
     }
 
-    private int readIntLittleEndian(RandomAccessFile raf) throws IOException {
-        int a = raf.readByte() & 0xFF;
-        int b = raf.readByte() & 0xFF;
-        int c = raf.readByte() & 0xFF;
-        int d = raf.readByte() & 0xFF;
-        return (d << 24) | (c << 16) | (b << 8) | a;
+    private static ByteBuffer buffer(ByteBuffer[] buffers, int slot, int capacity) {
+        if (buffers[slot] == null) {
+            buffers[slot] = ByteBuffer.allocate(capacity);
+        }
+        return buffers[slot];
     }
 
-    private void waitUnlock(long ms) {
+    private Fragment decode(int index, int x, int y, int width, int height, byte[] image, int chartaW, int chartaH,
+                            long budget) throws IOException {
+        if (x < 0 || y < 0 || width < 1 || width > 5000 || height < 1 || height > 5000) {
+            throw new BadRequestException("Wrong fragment coordinates or size");
+        }
+        checkXY(x, y, chartaW, chartaH);
+        try (ImageReader reader = ImageReader.open(new ByteArrayInputStream(image))) {
+            int pixels = Math.min(Math.min(width, reader.getWidth()), chartaW - x);
+            int rows = Math.min(Math.min(height, reader.getHeight()), chartaH - y);
+            if ((long) pixels * rows * 3 > budget) {
+                throw new BadRequestException("Batch decodes to too many pixels");
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(pixels * rows * 3);
+            if (reader.isBottomUp()) {
+                for (int i = reader.getHeight() - 1; i >= rows; i--) {
+                    reader.readRow();
+                }
+            }
+            for (int k = 0; k < rows; k++) {
+                int i = reader.isBottomUp() ? rows - 1 - k : k;
+                System.arraycopy(reader.readRow(), 0, buffer.array(), i * pixels * 3, pixels * 3);
+            }
+            return new Fragment(index, x, y, pixels, rows, buffer);
+        }
+    }
+
+    private boolean hasMore(PushbackInputStream stream) throws IOException {
+        int next = stream.read();
+        if (next < 0) {
+            return false;
+        }
+        stream.unread(next);
+        return true;
+    }
+
+    private int readFrameInt(DataInputStream in) throws IOException {
         try {
-            Thread.sleep(ms);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+            return in.readInt();
+        } catch (EOFException e) {
+            throw new BadRequestException("Batch is truncated");
         }
     }
+
+    private boolean overlap(List<Fragment> fragments) {
+        for (int i = 0; i < fragments.size(); i++) {
+            Fragment a = fragments.get(i);
+            for (int j = i + 1; j < fragments.size(); j++) {
+                Fragment b = fragments.get(j);
+                if (a.getX() < b.getX() + b.getWidth() && b.getX() < a.getX() + a.getWidth()
+                        && a.getY() < b.getY() + b.getHeight() && b.getY() < a.getY() + a.getHeight()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void checkXY(int x, int y, int width, int height) {
+        if (x >= width || y >= height) {
+            throw new BadRequestException("X/Y out of range");
+        }
+    }
+
+    @Getter
+    @RequiredArgsConstructor
+    private static class Fragment {
+        private final int index;
+        private final int x;
+        private final int y;
+        private final int width;
+        private final int height;
+        private final ByteBuffer pixels;
+    }
 }
@@ -0,0 +1,66 @@
+package com.example.chartographer.service;
+
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Version counters over row bands of chartas, bumped after pixels of a band are written.
+ * Counters only grow, so the sum of the counters of the bands a rectangle covers changes with every write
+ * to any of them; with the start time of the process it identifies the state of the rectangle without reading it.
+ * Counters live in memory only, the start time tells them apart after a restart.
+ */
+@Component
+public class ChartaVersions {
+
+    private final long epoch = System.currentTimeMillis();
+
+    private final Map<String, Bands> chartas = new ConcurrentHashMap<>();
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Bumps the bands of rows {@code [fromRow, toRow)}; call once the rows are written, before releasing their lock.
+     */
+    public void bump(String id, int fromRow, int toRow, int bandHeight) {
+        chartas.computeIfAbsent(id, k -> new Bands()).bump(fromRow / bandHeight, (toRow - 1) / bandHeight);
+    }
+
+    /**
+     * Returns the sum of the counters of the bands of rows {@code [fromRow, toRow)}.
+     */
+    public long version(String id, int fromRow, int toRow, int bandHeight) {
+        Bands bands = chartas.get(id);
+        return bands == null ? 0 : bands.sum(fromRow / bandHeight, (toRow - 1) / bandHeight);
+    }
+
+    public void forget(String id) {
+        chartas.remove(id);
+    }
+
+    private static class Bands {
+
+        private long[] counters = new long[0];
+
+        synchronized void bump(int from, int to) {
+            if (to >= counters.length) {
+                counters = Arrays.copyOf(counters, Math.max(to + 1, counters.length * 2));
+            }
+            for (int band = from; band <= to; band++) {
+                counters[band]++;
+            }
+        }
+
+        synchronized long sum(int from, int to) {
+            long sum = 0;
+            for (int band = from; band <= Math.min(to, counters.length - 1); band++) {
+                sum += counters[band];
+            }
+            return sum;
+        }
+    }
+}
@@ -0,0 +1,714 @@
+package com.example.chartographer.service;
+
+import com.example.chartographer.exception.NotFoundException;
+import com.example.chartographer.image.PixelBlitter;
+import com.example.chartographer.image.PixelRaster;
+import com.example.chartographer.service.ChartaLockManager.ChartaLock;
+import com.example.chartographer.storage.Charta;
+import com.example.chartographer.storage.ChartaStore;
+import com.example.chartographer.storage.ContentLayout;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of saved fragments. A save streams its clipped rows into a record reserved in the current
+ * segment and is acknowledged once the record is fsynced; concurrent saves share one fsync. A background applier
+ * then writes the records into their chartas in commit order and drops segments whose records are all applied.
+ * <p>
+ * A record is {@code magic, length, id, x, y, width, height}, then the rows in the order they arrive in the image,
+ * bottom-up unless the stored height is negative, then the commit sequence and the CRC32 of the rows. The header
+ * is written when the record is reserved, so that a record torn by a crash can still be skipped; records without
+ * a valid trailer are never applied.
+ * Segments left over from a previous run are replayed before the application starts serving, also when the journal
+ * has since been disabled.
+ * <p>
+ * The sequence of the last applied record is kept in the {@code applied} file next to the segments and written
+ * before the record counts as applied, so the replay skips records already in their chartas and cannot put old rows
+ * back over a later copy, which writes the charta directly once its records are applied.
+ * <p>
+ * A record that still cannot be applied after {@link #MAX_ATTEMPTS} attempts is copied to a {@code quarantine-*}
+ * file next to the segments and its charta is quarantined: later records of that charta are set aside the same way,
+ * new saves to it and {@link #flush} fail, and the applier goes on with the other chartas.
+ */
+@Slf4j
+@Component
+public class FragmentJournal {
+
+    private static final int MAGIC = 0x4A524E4C;
+    private static final int TRAILER_SIZE = 16;
+    private static final int CHUNK_SIZE = 1 << 20;
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long FIRST_RETRY_PAUSE = 100;
+    private static final String CHECKPOINT_FILE = "applied";
+
+    private final ChartaStore store;
+
+    private final ChartaLockManager locks;
+
+    private final ChartaPyramid pyramid;
+
+    private final ChartaVersions versions;
+
+    private final ContentLayout layout;
+
+    private final boolean enabled;
+
+    private final long segmentSize;
+
+    private Path dir;
+
+    private Segment current;
+
+    private FileChannel checkpoint;
+
+    private final Object syncLock = new Object();
+
+    private final Set<Record> unsynced = ConcurrentHashMap.newKeySet();
+
+    private final Deque<Record> queue = new ArrayDeque<>();
+
+    private final Map<String, Long> lastSequence = new HashMap<>();
+
+    private final Set<String> quarantined = ConcurrentHashMap.newKeySet();
+
+    private long sequence;
+
+    private long applied;
+
+    private Thread applier;
+
+    public FragmentJournal(ChartaStore store, ChartaLockManager locks, ChartaPyramid pyramid, ChartaVersions versions,
+                           ContentLayout layout,
+                           @Value("${chartographer.journal.enabled:false}") boolean enabled,
+                           @Value("${chartographer.journal.segment-size:268435456}") long segmentSize) {
+        this.store = store;
+        this.locks = locks;
+        this.pyramid = pyramid;
+        this.versions = versions;
+        this.layout = layout;
+        this.enabled = enabled;
+        this.segmentSize = segmentSize;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        Path home = layout.getHome();
+        if (home == null || !enabled && !Files.isDirectory(home.resolve(ContentLayout.JOURNAL_DIR))) {
+            return;
+        }
+        dir = Files.createDirectories(home.resolve(ContentLayout.JOURNAL_DIR));
+        checkpoint = FileChannel.open(dir.resolve(CHECKPOINT_FILE), StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE);
+        replay();
+        if (!enabled) {
+            // the saves of a run with the journal on were acknowledged, so they are applied even now
+            checkpoint.close();
+            return;
+        }
+        applier = new Thread(this::applyLoop, "journal-applier");
+        applier.setDaemon(true);
+        applier.start();
+    }
+
+    @PreDestroy
+    public void stop() throws IOException {
+        if (applier == null) {
+            return;
+        }
+        applier.interrupt();
+        try {
+            applier.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        applier = null;
+        synchronized (this) {
+            if (current != null) {
+                current.channel.close();
+                current = null;
+            }
+        }
+        checkpoint.close();
+    }
+
+    /**
+     * Reserves a record for a fragment of {@code width * height} pixels, whose rows will come bottom row first
+     * if {@code bottomUp} is set, and writes its header.
+     * The rows are then added with {@link Record#write} and the record is finished with {@link #commit}
+     * or {@link #abandon}.
+     */
+    public Record append(String id, int x, int y, int width, int height, boolean bottomUp) throws IOException {
+        checkQuarantine(id);
+        byte[] name = id.getBytes(StandardCharsets.UTF_8);
+        int headerSize = 4 + 4 + 2 + name.length + 16;
+        long length = headerSize + (long) width * height * 3 + TRAILER_SIZE;
+        ByteBuffer header = ByteBuffer.allocate(headerSize)
+                .putInt(MAGIC).putInt((int) length).putShort((short) name.length).put(name)
+                .putInt(x).putInt(y).putInt(width).putInt(bottomUp ? height : -height);
+        header.flip();
+
+        Record record;
+        synchronized (this) {
+            if (current == null || current.position > 0 && current.position + length > segmentSize) {
+                roll();
+            }
+            record = new Record(current, current.position, headerSize, id, x, y, width, height, bottomUp);
+            current.position += length;
+            current.records++;
+            writeFully(current.channel, header, record.offset);
+        }
+        return record;
+    }
+
+    /**
+     * Completes the record and returns once it is durable, together with every record committed meanwhile.
+     */
+    public void commit(Record record) throws IOException {
+        commit(List.of(record));
+    }
+
+    /**
+     * Completes the records in order and returns once they are all durable; they share one sync.
+     */
+    public void commit(List<Record> records) throws IOException {
+        try {
+            for (Record record : records) {
+                record.flushChunk();
+                synchronized (queue) {
+                    record.sequence = ++sequence;
+                    queue.add(record);
+                    lastSequence.put(record.id, record.sequence);
+                }
+                ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE)
+                        .putLong(record.sequence).putLong(record.crc.getValue());
+                trailer.flip();
+                writeFully(record.segment.channel, trailer, record.offset + record.length() - TRAILER_SIZE);
+            }
+            sync(records);
+        } catch (IOException | RuntimeException e) {
+            synchronized (queue) {
+                for (Record record : records) {
+                    record.abandoned = true;
+                    if (record.sequence == 0) {
+                        finish(record.segment);
+                    }
+                }
+                queue.notifyAll();
+            }
+            throw e;
+        }
+        synchronized (queue) {
+            for (Record record : records) {
+                record.committed = true;
+            }
+            queue.notifyAll();
+        }
+    }
+
+    /**
+     * Drops a record whose fragment could not be received; it is left without a trailer and is never applied.
+     */
+    public void abandon(Record record) {
+        synchronized (queue) {
+            finish(record.segment);
+        }
+    }
+
+    /**
+     * Waits until every record of the charta committed so far has been applied; fails if the charta is quarantined.
+     */
+    public void flush(String id) throws IOException {
+        if (!enabled) {
+            return;
+        }
+        await(id);
+        checkQuarantine(id);
+    }
+
+    /**
+     * Waits until every record of the charta committed so far has been applied or set aside, then lifts its
+     * quarantine. Used when the charta is removed, so that a quarantined charta can still be deleted.
+     */
+    public void release(String id) throws IOException {
+        if (!enabled) {
+            return;
+        }
+        await(id);
+        quarantined.remove(id);
+    }
+
+    public boolean isQuarantined(String id) {
+        return quarantined.contains(id);
+    }
+
+    private void await(String id) throws IOException {
+        synchronized (queue) {
+            Long last;
+            while ((last = lastSequence.get(id)) != null && applied < last) {
+                try {
+                    queue.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the journal");
+                }
+            }
+        }
+    }
+
+    private void checkQuarantine(String id) throws IOException {
+        if (quarantined.contains(id)) {
+            throw new IOException("Charta " + id + " is quarantined after failed journal applies");
+        }
+    }
+
+    private void sync(List<Record> records) throws IOException {
+        unsynced.addAll(records);
+        synchronized (syncLock) {
+            for (Record r : records) {
+                if (r.syncFailure != null) {
+                    throw new IOException("Journal sync failed", r.syncFailure);
+                }
+            }
+            if (records.stream().allMatch(r -> r.synced)) {
+                return;
+            }
+            List<Record> batch = new ArrayList<>(unsynced);
+            Set<FileChannel> channels = new HashSet<>();
+            for (Record r : batch) {
+                channels.add(r.segment.channel);
+            }
+            try {
+                for (FileChannel channel : channels) {
+                    channel.force(false);
+                }
+            } catch (IOException | RuntimeException e) {
+                // every record of the failed batch fails, not only those of the caller
+                for (Record r : batch) {
+                    r.syncFailure = e;
+                    unsynced.remove(r);
+                }
+                throw e;
+            }
+            for (Record r : batch) {
+                r.synced = true;
+                unsynced.remove(r);
+            }
+        }
+    }
+
+    private void applyLoop() {
+        while (true) {
+            Record record;
+            synchronized (queue) {
+                try {
+                    while (queue.isEmpty() || !queue.peek().committed && !queue.peek().abandoned) {
+                        queue.wait();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                record = queue.peek();
+            }
+            if (!record.abandoned) {
+                if (quarantined.contains(record.id)) {
+                    quarantine(record, null);
+                } else if (!applyOrQuarantine(record)) {
+                    return;
+                }
+            }
+            synchronized (queue) {
+                queue.poll();
+                applied = record.sequence;
+                lastSequence.remove(record.id, record.sequence);
+                finish(record.segment);
+                queue.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Applies the record, retrying failures with a growing pause, since the save has already been acknowledged,
+     * and quarantines its charta once the attempts run out.
+     * Returns false when interrupted; the record then stays in its segment and is replayed at the next start.
+     */
+    private boolean applyOrQuarantine(Record record) {
+        long pause = FIRST_RETRY_PAUSE;
+        for (int attempt = 1; ; attempt++, pause *= 2) {
+            try {
+                apply(record.segment.channel, record);
+                saveCheckpoint(record.sequence);
+                return true;
+            } catch (IOException | RuntimeException e) {
+                if (attempt == MAX_ATTEMPTS) {
+                    quarantine(record, e);
+                    return true;
+                }
+                log.warn("Failed to apply journal record {} of {}, retrying in {} ms",
+                        record.sequence, record.id, pause, e);
+            }
+            try {
+                Thread.sleep(pause);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Quarantines the charta of a record that cannot be applied and copies the record out of its segment,
+     * so that it survives the segment and can be recovered by hand.
+     */
+    private void quarantine(Record record, Exception cause) {
+        if (quarantined.add(record.id)) {
+            log.error("Quarantining charta {} after failing to apply journal record {}",
+                    record.id, record.sequence, cause);
+        }
+        Path path = dir.resolve("quarantine-" + record.id + "-" + record.sequence);
+        try (FileChannel copy = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (long done = 0; done < record.length(); ) {
+                long copied = record.segment.channel.transferTo(record.offset + done, record.length() - done, copy);
+                if (copied == 0) {
+                    throw new IOException("Journal segment is truncated");
+                }
+                done += copied;
+            }
+            copy.force(false);
+        } catch (IOException e) {
+            log.error("Failed to keep quarantined journal record {} of {}", record.sequence, record.id, e);
+        }
+    }
+
+    /**
+     * Writes the record into its charta band by band and makes it durable there.
+     */
+    private void apply(FileChannel channel, Record record) throws IOException {
+        int bandHeight = store.getBandHeight();
+        int rowBytes = record.width * 3;
+        long payload = record.offset + record.headerSize;
+        try (ChartaLock lock = locks.lock(record.id, record.y, record.y + record.height, bandHeight, false);
+             Charta charta = store.open(record.id, false)) {
+            ByteBuffer stored = ByteBuffer.allocate(rowBytes * Math.min(bandHeight, record.height));
+            ByteBuffer band = ByteBuffer.allocate(stored.capacity());
+            for (int bottom = record.height; bottom > 0; ) {
+                int top = Math.max((record.y + bottom - 1) / bandHeight * bandHeight - record.y, 0);
+                int rows = bottom - top;
+                if (record.bottomUp) {
+                    stored.clear().limit(rows * rowBytes);
+                    readFully(channel, stored, payload + (long) (record.height - bottom) * rowBytes);
+                    PixelBlitter.blit(new PixelRaster(stored, 0, record.width, rows, rowBytes, true), 0, 0,
+                            new PixelRaster(band, 0, record.width, rows, rowBytes, false), 0, 0, record.width, rows);
+                } else {
+                    band.clear().limit(rows * rowBytes);
+                    readFully(channel, band, payload + (long) top * rowBytes);
+                }
+                band.position(0).limit(rows * rowBytes);
+                charta.write(record.x, record.y + top, record.width, rows, band);
+                bottom = top;
+            }
+            charta.force();
+            versions.bump(record.id, record.y, record.y + record.height, bandHeight);
+        } catch (NotFoundException e) {
+            log.warn("Skipping journal record of deleted charta {}", record.id);
+            return;
+        }
+        pyramid.update(record.id, record.x, record.y, record.width, record.height);
+    }
+
+    private long loadCheckpoint() throws IOException {
+        if (checkpoint.size() < Long.BYTES) {
+            return 0;
+        }
+        ByteBuffer value = ByteBuffer.allocate(Long.BYTES);
+        readFully(checkpoint, value, 0);
+        return value.getLong(0);
+    }
+
+    /**
+     * Records that every record up to {@code sequence} is in its charta; called by the applier only.
+     */
+    private void saveCheckpoint(long sequence) throws IOException {
+        ByteBuffer value = ByteBuffer.allocate(Long.BYTES).putLong(sequence);
+        value.flip();
+        writeFully(checkpoint, value, 0);
+        checkpoint.force(false);
+    }
+
+    /**
+     * Applies the committed records of the segments left by the previous run that are past the checkpoint in commit
+     * order, then deletes the segments. New records are numbered on from the last one found.
+     */
+    private void replay() throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> segments = Files.newDirectoryStream(dir, "segment-*")) {
+            segments.forEach(paths::add);
+        }
+        paths.sort(Comparator.comparingLong(FragmentJournal::segmentNumber));
+        List<FileChannel> channels = new ArrayList<>();
+        List<Record> records = new ArrayList<>();
+        try {
+            for (Path path : paths) {
+                FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+                channels.add(channel);
+                Segment segment = new Segment(segmentNumber(path), path, channel);
+                scan(segment, records);
+            }
+            long checkpointed = loadCheckpoint();
+            records.removeIf(r -> r.sequence <= checkpointed);
+            long last = checkpointed;
+            records.sort(Comparator.comparingLong(r -> r.sequence));
+            for (Record record : records) {
+                last = record.sequence;
+                if (quarantined.contains(record.id)) {
+                    quarantine(record, null);
+                    continue;
+                }
+                try {
+                    apply(record.segment.channel, record);
+                } catch (IOException | RuntimeException e) {
+                    quarantine(record, e);
+                }
+            }
+            sequence = last;
+            applied = last;
+            if (last > checkpointed) {
+                saveCheckpoint(last);
+            }
+        } finally {
+            for (FileChannel channel : channels) {
+                channel.close();
+            }
+        }
+        for (Path path : paths) {
+            Files.delete(path);
+        }
+        if (!records.isEmpty()) {
+            log.info("Replayed {} journal records from {} segments", records.size(), paths.size());
+        }
+    }
+
+    /**
+     * Collects the committed records of the segment, skipping torn ones and stopping at the first missing header.
+     */
+    private void scan(Segment segment, List<Record> records) throws IOException {
+        long size = segment.channel.size();
+        ByteBuffer fixed = ByteBuffer.allocate(10);
+        for (long position = 0; position + fixed.capacity() <= size; ) {
+            fixed.clear();
+            readFully(segment.channel, fixed, position);
+            if (fixed.getInt(0) != MAGIC) {
+                break;
+            }
+            int length = fixed.getInt(4);
+            int nameLength = fixed.getShort(8);
+            int headerSize = 4 + 4 + 2 + nameLength + 16;
+            if (nameLength < 0 || length < headerSize + TRAILER_SIZE || position + length > size) {
+                break;
+            }
+            ByteBuffer header = ByteBuffer.allocate(headerSize - fixed.capacity());
+            readFully(segment.channel, header, position + fixed.capacity());
+            header.flip();
+            byte[] name = new byte[nameLength];
+            header.get(name);
+            int x = header.getInt();
+            int y = header.getInt();
+            int width = header.getInt();
+            int height = header.getInt();
+            Record record = new Record(segment, position, headerSize, new String(name, StandardCharsets.UTF_8),
+                    x, y, width, Math.abs(height), height > 0);
+            if (record.length() == length && record.verify()) {
+                records.add(record);
+            }
+            position += length;
+        }
+    }
+
+    private void roll() throws IOException {
+        long number = current == null ? 0 : current.number + 1;
+        Path path = dir.resolve("segment-" + number);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        Segment previous = current;
+        current = new Segment(number, path, channel);
+        if (previous != null) {
+            synchronized (queue) {
+                previous.closed = true;
+                retire(previous);
+            }
+        }
+    }
+
+    /**
+     * Counts one record of the segment as done. Must hold the queue lock.
+     */
+    private void finish(Segment segment) {
+        segment.done++;
+        retire(segment);
+    }
+
+    private void retire(Segment segment) {
+        if (!segment.closed || segment.done < segment.records) {
+            return;
+        }
+        try {
+            segment.channel.close();
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            log.warn("Failed to delete journal segment {}", segment.path, e);
+        }
+    }
+
+    private static long segmentNumber(Path path) {
+        return Long.parseLong(path.getFileName().toString().substring("segment-".length()));
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            int read = channel.read(dst, position);
+            if (read < 0) {
+                throw new IOException("Journal segment is truncated");
+            }
+            position += read;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer src, long position) throws IOException {
+        while (src.hasRemaining()) {
+            position += channel.write(src, position);
+        }
+    }
+
+    private static class Segment {
+
+        private final long number;
+        private final Path path;
+        private final FileChannel channel;
+        private long position;
+        private int records;
+        private int done;
+        private boolean closed;
+
+        Segment(long number, Path path, FileChannel channel) {
+            this.number = number;
+            this.path = path;
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * Record of one fragment; its rows are added in image order, {@code width * 3} bytes each.
+     */
+    public static class Record {
+
+        private final Segment segment;
+        private final long offset;
+        private final int headerSize;
+        private final String id;
+        private final int x;
+        private final int y;
+        private final int width;
+        private final int height;
+        private final boolean bottomUp;
+        private final CRC32 crc = new CRC32();
+        private ByteBuffer chunk;
+        private long written;
+        private long sequence;
+        private volatile boolean synced;
+        private Exception syncFailure;
+        private boolean committed;
+        private boolean abandoned;
+
+        Record(Segment segment, long offset, int headerSize, String id, int x, int y, int width, int height,
+               boolean bottomUp) {
+            this.segment = segment;
+            this.offset = offset;
+            this.headerSize = headerSize;
+            this.id = id;
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+            this.bottomUp = bottomUp;
+        }
+
+        public void write(byte[] row) throws IOException {
+            int length = width * 3;
+            if (chunk == null) {
+                chunk = ByteBuffer.allocate((int) Math.min(Math.max(CHUNK_SIZE, length), payloadSize()));
+            }
+            if (chunk.remaining() < length) {
+                flushChunk();
+            }
+            chunk.put(row, 0, length);
+            crc.update(row, 0, length);
+        }
+
+        private void flushChunk() throws IOException {
+            if (chunk == null || chunk.position() == 0) {
+                return;
+            }
+            chunk.flip();
+            int size = chunk.remaining();
+            writeFully(segment.channel, chunk, offset + headerSize + written);
+            written += size;
+            chunk.clear();
+        }
+
+        private long payloadSize() {
+            return (long) width * height * 3;
+        }
+
+        private long length() {
+            return headerSize + payloadSize() + TRAILER_SIZE;
+        }
+
+        /**
+         * Reads the trailer and checks the rows against it. Used by the replay only.
+         */
+        private boolean verify() throws IOException {
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+            readFully(segment.channel, trailer, offset + length() - TRAILER_SIZE);
+            sequence = trailer.getLong(0);
+            if (sequence <= 0) {
+                return false;
+            }
+            CRC32 check = new CRC32();
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(CHUNK_SIZE, Math.max(payloadSize(), 1)));
+            for (long done = 0; done < payloadSize(); ) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), payloadSize() - done));
+                readFully(segment.channel, buffer, offset + headerSize + done);
+                check.update(buffer.array(), 0, buffer.limit());
+                done += buffer.limit();
+            }
+            return check.getValue() == trailer.getLong(8);
+        }
+    }
+}
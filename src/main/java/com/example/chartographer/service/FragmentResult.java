@@ -0,0 +1,12 @@
+package com.example.chartographer.service;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+@Getter
+@RequiredArgsConstructor
+public class FragmentResult {
+    private final int index;
+    private final int status;
+    private final String message;
+}
@@ -0,0 +1,159 @@
+package com.example.chartographer.service;
+
+import com.example.chartographer.storage.Charta;
+import com.example.chartographer.storage.ChartaStore;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Moves the bands of a fragment between memory and a charta. Fragments of at least
+ * {@code chartographer.io.parallel-pixels} pixels have up to {@code chartographer.io.band-threads} bands
+ * in flight on a shared pool, each on a charta handle of its own; the handles use positional I/O, so bands
+ * never share a file position. Smaller fragments keep the sequential path on the calling thread.
+ * <p>
+ * Bands are prepared and finished in order on the calling thread. Pool tasks never acquire charta locks: the caller
+ * takes the locks of every band it runs before calling {@link #run} and keeps them until it returns, since a task
+ * blocked on a lock could hold the pool thread that the lock owner's own bands are queued for.
+ * Band {@code i} uses slot {@code i % slots}, and a slot is reused only after its band has been finished,
+ * so the caller needs one buffer per slot.
+ */
+@Component
+public class ParallelBands {
+
+    private final ChartaStore store;
+    private final ThreadPoolTaskExecutor pool;
+    private final int threads;
+    private final long parallelPixels;
+
+    public ParallelBands(ChartaStore store,
+                         @Value("${chartographer.io.band-threads:0}") int threads,
+                         @Value("${chartographer.io.parallel-pixels:4000000}") long parallelPixels) {
+        this.store = store;
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        this.parallelPixels = parallelPixels;
+        this.pool = new ThreadPoolTaskExecutor();
+        pool.setThreadNamePrefix("charta-band-");
+        pool.setCorePoolSize(this.threads);
+        pool.setMaxPoolSize(this.threads);
+        pool.initialize();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Number of slots for a fragment of {@code pixels} pixels split into {@code bands} bands.
+     */
+    public int slots(long pixels, int bands) {
+        return pixels >= parallelPixels && threads > 1 ? Math.max(Math.min(threads, bands), 1) : 1;
+    }
+
+    /**
+     * Runs {@code bands} bands of the charta {@code id}; {@code charta} is the handle of the caller,
+     * used as is on the sequential path. The caller must already hold the locks of all the bands; the transfers
+     * run on the pool without taking any.
+     */
+    public void run(String id, Charta charta, boolean readOnly, int slots, int bands, Band band) throws IOException {
+        if (slots == 1) {
+            for (int i = 0; i < bands; i++) {
+                band.prepare(i, 0).transfer(charta);
+                band.finish(i, 0);
+            }
+            return;
+        }
+        Deque<Future<?>> inFlight = new ArrayDeque<>();
+        try {
+            for (int next = 0, finished = 0; finished < bands; ) {
+                if (next < bands && inFlight.size() < slots) {
+                    Transfer transfer = band.prepare(next, next % slots);
+                    inFlight.add(pool.submit(() -> {
+                        try (Charta own = store.open(id, readOnly)) {
+                            transfer.transfer(own);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }));
+                    next++;
+                } else {
+                    await(inFlight.poll());
+                    band.finish(finished, finished % slots);
+                    finished++;
+                }
+            }
+        } finally {
+            drain(inFlight);
+        }
+    }
+
+    private static void await(Future<?> future) throws IOException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a band");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Waits for the bands still running after a failure, so none of them outlives the request.
+     */
+    private static void drain(Deque<Future<?>> inFlight) {
+        boolean interrupted = false;
+        for (Future<?> future : inFlight) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public interface Band {
+
+        /**
+         * Called in band order on the calling thread, e.g. to fill the buffer of the slot;
+         * returns the I/O of the band.
+         */
+        Transfer prepare(int band, int slot) throws IOException;
+
+        /**
+         * Called in band order on the calling thread once the I/O of the band is done.
+         */
+        default void finish(int band, int slot) throws IOException {
+        }
+    }
+
+    public interface Transfer {
+
+        void transfer(Charta charta) throws IOException;
+    }
+}
@@ -0,0 +1,350 @@
+package com.example.chartographer.storage;
+
+import com.example.chartographer.exception.NotFoundException;
+import com.example.chartographer.image.Bmp;
+import com.example.chartographer.image.PixelBlitter;
+import com.example.chartographer.image.PixelRaster;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps every charta as a single 24-bit bottom-up BMP file, placed by the {@link ContentLayout}.
+ * The file is created sparse: only the header is written, the pixels are black until a fragment lands on them.
+ * With {@code chartographer.storage.mmap} enabled rows are copied through memory-mapped windows
+ * of the file instead of one positional read or write per row.
+ * <p>
+ * Dimensions of every charta are registered at creation and at startup, so opening a charta parses no header.
+ * At most {@code chartographer.storage.max-open-files} channels are kept open and shared by all requests;
+ * the least recently used one is closed once nobody is using it.
+ */
+@Component
+@Qualifier("backend")
+@ConditionalOnProperty(name = "chartographer.storage.type", havingValue = "bmp", matchIfMissing = true)
+public class BmpChartaStore implements ChartaStore {
+
+    private static final int BAND_HEIGHT = 64;
+
+    private final boolean mmap;
+    private final long windowSize;
+    private final int maxOpenFiles;
+    private final ContentLayout layout;
+
+    private final Map<String, ChartaMeta> registry = new ConcurrentHashMap<>();
+    private final LinkedHashMap<String, PooledFile> files = new LinkedHashMap<>(16, 0.75f, true);
+
+    public BmpChartaStore(@Value("${chartographer.storage.mmap:false}") boolean mmap,
+                          @Value("${chartographer.storage.mmap-window-size:268435456}") long windowSize,
+                          @Value("${chartographer.storage.max-open-files:256}") int maxOpenFiles,
+                          ContentLayout layout) {
+        this.mmap = mmap;
+        this.windowSize = windowSize;
+        this.maxOpenFiles = maxOpenFiles;
+        this.layout = layout;
+    }
+
+    @PostConstruct
+    public void scan() throws IOException {
+        for (String id : layout.scan(Files::isRegularFile)) {
+            load(id);
+        }
+    }
+
+    @PreDestroy
+    public void closeAll() throws IOException {
+        synchronized (files) {
+            for (PooledFile file : files.values()) {
+                file.channel.close();
+            }
+            files.clear();
+        }
+    }
+
+    @Override
+    public void create(String id, int width, int height) throws IOException {
+        long size = Bmp.HEADER_SIZE + (long) Bmp.rowSize(width) * height;
+        try (RandomAccessFile raf = new RandomAccessFile(layout.place(id, size).toFile(), "rw")) {
+            raf.write(Bmp.header(width, height));
+            raf.setLength(size);
+        }
+        registry.put(id, new ChartaMeta(width, height, Bmp.rowSize(width)));
+    }
+
+    @Override
+    public Charta open(String id, boolean readOnly) throws IOException {
+        ChartaMeta meta = registry.containsKey(id) ? registry.get(id) : load(id);
+        if (meta == null) {
+            throw new NotFoundException(id + " not found");
+        }
+        return new BmpCharta(acquire(id), meta, mmap ? windowSize : 0);
+    }
+
+    @Override
+    public boolean exists(String id) {
+        try {
+            return registry.containsKey(id) || load(id) != null;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void delete(String id) throws IOException {
+        registry.remove(id);
+        synchronized (files) {
+            PooledFile file = files.remove(id);
+            if (file != null) {
+                evict(file);
+            }
+        }
+        Path path = layout.locate(id);
+        layout.forget(id);
+        if (path != null) {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    @Override
+    public int getBandHeight() {
+        return BAND_HEIGHT;
+    }
+
+    private Path path(String id) {
+        Path path = layout.locate(id);
+        if (path == null) {
+            throw new NotFoundException(id + " not found");
+        }
+        return path;
+    }
+
+    /**
+     * Registers the charta if its file is a 24-bit BMP; returns {@code null} otherwise.
+     */
+    private ChartaMeta load(String id) throws IOException {
+        Path path = layout.locate(id);
+        if (path == null || !Files.isRegularFile(path)) {
+            return null;
+        }
+        byte[] header = new byte[Bmp.HEADER_SIZE];
+        // the file may be deleted meanwhile; that is a missing charta, not a failure
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.wrap(header);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, buffer.position()) < 0) {
+                    return null;
+                }
+            }
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (Bmp.readShort(header, 0) != Bmp.SIGNATURE || Bmp.readShort(header, Bmp.BITS_OFFSET) != 24) {
+            return null;
+        }
+        int width = Bmp.readInt(header, Bmp.WIDTH_OFFSET);
+        ChartaMeta meta = new ChartaMeta(width, Bmp.readInt(header, Bmp.HEIGHT_OFFSET), Bmp.rowSize(width));
+        registry.put(id, meta);
+        return meta;
+    }
+
+    private PooledFile acquire(String id) throws IOException {
+        synchronized (files) {
+            PooledFile file = files.get(id);
+            if (file == null) {
+                file = new PooledFile(FileChannel.open(path(id), StandardOpenOption.READ, StandardOpenOption.WRITE));
+                files.put(id, file);
+                Iterator<PooledFile> eldest = files.values().iterator();
+                for (int open = files.size(); open > maxOpenFiles && eldest.hasNext(); ) {
+                    PooledFile candidate = eldest.next();
+                    if (candidate != file && candidate.references == 0) {
+                        eldest.remove();
+                        evict(candidate);
+                        open--;
+                    }
+                }
+            }
+            file.references++;
+            return file;
+        }
+    }
+
+    private void release(PooledFile file) throws IOException {
+        synchronized (files) {
+            if (--file.references == 0 && file.evicted) {
+                file.channel.close();
+            }
+        }
+    }
+
+    private void evict(PooledFile file) throws IOException {
+        file.evicted = true;
+        if (file.references == 0) {
+            file.channel.close();
+        }
+    }
+
+    private static class ChartaMeta {
+
+        private final int width;
+        private final int height;
+        private final long rowSize;
+
+        ChartaMeta(int width, int height, long rowSize) {
+            this.width = width;
+            this.height = height;
+            this.rowSize = rowSize;
+        }
+    }
+
+    /**
+     * Channel shared by every open handle of one charta. Guarded by the pool, except for the lazily
+     * mapped windows which are guarded by the file itself.
+     */
+    private static class PooledFile {
+
+        private final FileChannel channel;
+        private MappedByteBuffer[] windows;
+        private int references;
+        private boolean evicted;
+
+        PooledFile(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        synchronized MappedByteBuffer window(int index, long windowSize, long overlap) throws IOException {
+            if (windows == null) {
+                windows = new MappedByteBuffer[(int) (channel.size() / windowSize) + 1];
+            }
+            if (windows[index] == null) {
+                long start = index * windowSize;
+                long size = Math.min(windowSize + overlap, channel.size() - start);
+                windows[index] = channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+            }
+            return windows[index];
+        }
+
+        synchronized void force() throws IOException {
+            if (windows != null) {
+                for (MappedByteBuffer window : windows) {
+                    if (window != null) {
+                        window.force();
+                    }
+                }
+            }
+            channel.force(false);
+        }
+    }
+
+    private class BmpCharta implements Charta {
+
+        private final PooledFile file;
+        private final ChartaMeta meta;
+        private final long windowSize;
+        private final ByteBuffer[] views;
+
+        BmpCharta(PooledFile file, ChartaMeta meta, long windowSize) throws IOException {
+            this.file = file;
+            this.meta = meta;
+            this.windowSize = windowSize;
+            this.views = windowSize > 0 ? new ByteBuffer[(int) (file.channel.size() / windowSize) + 1] : null;
+        }
+
+        @Override
+        public int getWidth() {
+            return meta.width;
+        }
+
+        @Override
+        public int getHeight() {
+            return meta.height;
+        }
+
+        @Override
+        public void read(int x, int y, int width, int height, ByteBuffer dst) throws IOException {
+            int length = width * 3;
+            if (views != null) {
+                PixelRaster target = PixelRaster.packed(dst, width, height);
+                for (int bottom = y + height; bottom > y; ) {
+                    PixelRaster source = window(x, y, width, bottom);
+                    bottom -= source.getHeight();
+                    PixelBlitter.blit(source, 0, 0, target, 0, bottom - y, width, source.getHeight());
+                }
+                dst.position(dst.position() + length * height);
+                return;
+            }
+            for (int row = y; row < y + height; row++) {
+                ByteBuffer line = dst.slice();
+                line.limit(length);
+                IoUtils.readFully(file.channel, line, offset(x, row));
+                dst.position(dst.position() + length);
+            }
+        }
+
+        @Override
+        public void write(int x, int y, int width, int height, ByteBuffer src) throws IOException {
+            int length = width * 3;
+            if (views != null) {
+                PixelRaster source = PixelRaster.packed(src, width, height);
+                for (int bottom = y + height; bottom > y; ) {
+                    PixelRaster target = window(x, y, width, bottom);
+                    bottom -= target.getHeight();
+                    PixelBlitter.blit(source, 0, bottom - y, target, 0, 0, width, target.getHeight());
+                }
+                src.position(src.position() + length * height);
+                return;
+            }
+            for (int row = y; row < y + height; row++) {
+                ByteBuffer line = src.slice();
+                line.limit(length);
+                IoUtils.writeFully(file.channel, line, offset(x, row));
+                src.position(src.position() + length);
+            }
+        }
+
+        @Override
+        public void force() throws IOException {
+            file.force();
+        }
+
+        @Override
+        public void close() throws IOException {
+            release(file);
+        }
+
+        /**
+         * Returns the raster of columns {@code [x, x + width)} of the rows just above {@code bottom}, down to
+         * {@code top}, that start in the mapped window holding row {@code bottom - 1}. Windows overlap by one row
+         * so that a row never crosses a window boundary.
+         */
+        private PixelRaster window(int x, int top, int width, int bottom) throws IOException {
+            long position = offset(x, bottom - 1);
+            int index = (int) (position / windowSize);
+            if (views[index] == null) {
+                views[index] = file.window(index, windowSize, meta.rowSize).duplicate();
+            }
+            long rows = ((index + 1) * windowSize - position - 1) / meta.rowSize + 1;
+            return new PixelRaster(views[index], (int) (position - index * windowSize), width,
+                    (int) Math.min(rows, bottom - top), (int) meta.rowSize, true);
+        }
+
+        private long offset(int x, int row) {
+            return Bmp.HEADER_SIZE + meta.rowSize * (meta.height - 1 - row) + x * 3L;
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.example.chartographer.storage;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+@Getter
+@RequiredArgsConstructor
+public class CacheStats {
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final int blocks;
+    private final long bytes;
+}
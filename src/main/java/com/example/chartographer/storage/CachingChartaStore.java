@@ -0,0 +1,208 @@
+package com.example.chartographer.storage;
+
+import com.example.chartographer.image.PixelBlitter;
+import com.example.chartographer.image.PixelRaster;
+import lombok.EqualsAndHashCode;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Primary;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps recently read blocks of chartas in memory in front of the storage backend.
+ * A block is one band of the backend high and {@code chartographer.cache.block-width} pixels wide.
+ * Blocks are evicted least recently used first once {@code chartographer.cache.size} bytes are used,
+ * and dropped as soon as a write overlaps them or the charta is deleted.
+ * Blocks never span two lock bands, so callers holding band locks always see consistent blocks.
+ */
+@Primary
+@Component
+public class CachingChartaStore implements ChartaStore {
+
+    private final ChartaStore backend;
+    private final long capacity;
+    private final int blockWidth;
+    private final boolean offHeap;
+
+    private final LinkedHashMap<BlockKey, ByteBuffer> blocks = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public CachingChartaStore(@Qualifier("backend") ChartaStore backend,
+                              @Value("${chartographer.cache.size:134217728}") long capacity,
+                              @Value("${chartographer.cache.block-width:1024}") int blockWidth,
+                              @Value("${chartographer.cache.off-heap:false}") boolean offHeap) {
+        this.backend = backend;
+        this.capacity = capacity;
+        this.blockWidth = blockWidth;
+        this.offHeap = offHeap;
+    }
+
+    @Override
+    public void create(String id, int width, int height) throws IOException {
+        backend.create(id, width, height);
+    }
+
+    @Override
+    public Charta open(String id, boolean readOnly) throws IOException {
+        Charta charta = backend.open(id, readOnly);
+        return capacity > 0 ? new CachedCharta(id, charta) : charta;
+    }
+
+    @Override
+    public boolean exists(String id) {
+        return backend.exists(id);
+    }
+
+    @Override
+    public void delete(String id) throws IOException {
+        backend.delete(id);
+        invalidate(id);
+    }
+
+    @Override
+    public int getBandHeight() {
+        return backend.getBandHeight();
+    }
+
+    public CacheStats getStats() {
+        synchronized (blocks) {
+            return new CacheStats(hits.get(), misses.get(), evictions.get(), blocks.size(), size);
+        }
+    }
+
+    private ByteBuffer get(BlockKey key) {
+        synchronized (blocks) {
+            return blocks.get(key);
+        }
+    }
+
+    private void put(BlockKey key, ByteBuffer block) {
+        synchronized (blocks) {
+            ByteBuffer previous = blocks.put(key, block);
+            size += block.capacity() - (previous == null ? 0 : previous.capacity());
+            Iterator<ByteBuffer> eldest = blocks.values().iterator();
+            while (size > capacity && eldest.hasNext()) {
+                size -= eldest.next().capacity();
+                eldest.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    private void invalidate(String id, int bandY, int bandX) {
+        synchronized (blocks) {
+            ByteBuffer block = blocks.remove(new BlockKey(id, bandY, bandX));
+            if (block != null) {
+                size -= block.capacity();
+            }
+        }
+    }
+
+    private void invalidate(String id) {
+        synchronized (blocks) {
+            Iterator<Map.Entry<BlockKey, ByteBuffer>> iterator = blocks.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<BlockKey, ByteBuffer> entry = iterator.next();
+                if (entry.getKey().id.equals(id)) {
+                    size -= entry.getValue().capacity();
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    @EqualsAndHashCode
+    @RequiredArgsConstructor
+    private static class BlockKey {
+        private final String id;
+        private final int bandY;
+        private final int bandX;
+    }
+
+    @RequiredArgsConstructor
+    private class CachedCharta implements Charta {
+
+        private final String id;
+        private final Charta charta;
+
+        @Override
+        public int getWidth() {
+            return charta.getWidth();
+        }
+
+        @Override
+        public int getHeight() {
+            return charta.getHeight();
+        }
+
+        @Override
+        public void read(int x, int y, int width, int height, ByteBuffer dst) throws IOException {
+            int bandHeight = getBandHeight();
+            PixelRaster target = PixelRaster.packed(dst, width, height);
+            for (int bandY = y / bandHeight; bandY <= (y + height - 1) / bandHeight; bandY++) {
+                for (int bandX = x / blockWidth; bandX <= (x + width - 1) / blockWidth; bandX++) {
+                    int blockLeft = bandX * blockWidth;
+                    int blockTop = bandY * bandHeight;
+                    int blockW = Math.min(blockWidth, charta.getWidth() - blockLeft);
+                    ByteBuffer block = load(bandY, bandX, blockLeft, blockTop, blockW);
+                    PixelRaster source = PixelRaster.packed(block, blockW, block.capacity() / (blockW * 3));
+                    PixelBlitter.blit(source, x - blockLeft, y - blockTop, target, 0, 0, width, height);
+                }
+            }
+            dst.position(dst.position() + width * height * 3);
+        }
+
+        @Override
+        public void write(int x, int y, int width, int height, ByteBuffer src) throws IOException {
+            charta.write(x, y, width, height, src);
+            int bandHeight = getBandHeight();
+            for (int bandY = y / bandHeight; bandY <= (y + height - 1) / bandHeight; bandY++) {
+                for (int bandX = x / blockWidth; bandX <= (x + width - 1) / blockWidth; bandX++) {
+                    invalidate(id, bandY, bandX);
+                }
+            }
+        }
+
+        @Override
+        public void force() throws IOException {
+            charta.force();
+        }
+
+        @Override
+        public void close() throws IOException {
+            charta.close();
+        }
+
+        /**
+         * Returns a private view of the block, reading it from the backend on a miss.
+         */
+        private ByteBuffer load(int bandY, int bandX, int blockLeft, int blockTop, int blockW) throws IOException {
+            BlockKey key = new BlockKey(id, bandY, bandX);
+            ByteBuffer block = get(key);
+            if (block != null) {
+                hits.incrementAndGet();
+                return block.duplicate();
+            }
+            misses.incrementAndGet();
+            int blockH = Math.min(getBandHeight(), charta.getHeight() - blockTop);
+            int length = blockW * blockH * 3;
+            block = offHeap ? ByteBuffer.allocateDirect(length) : ByteBuffer.allocate(length);
+            charta.read(blockLeft, blockTop, blockW, blockH, block);
+            block.clear();
+            put(key, block);
+            return block.duplicate();
+        }
+    }
+}
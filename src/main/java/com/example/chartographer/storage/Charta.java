@@ -0,0 +1,25 @@
+package com.example.chartographer.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Open charta. Rectangles passed to {@link #read} and {@link #write} must lie inside the charta;
+ * buffers hold {@code height} rows of {@code width * 3} bytes each, top row first, starting at their position.
+ */
+public interface Charta extends Closeable {
+
+    int getWidth();
+
+    int getHeight();
+
+    void read(int x, int y, int width, int height, ByteBuffer dst) throws IOException;
+
+    void write(int x, int y, int width, int height, ByteBuffer src) throws IOException;
+
+    /**
+     * Makes everything written through this handle durable.
+     */
+    void force() throws IOException;
+}
@@ -0,0 +1,26 @@
+package com.example.chartographer.storage;
+
+import java.io.IOException;
+
+/**
+ * Storage backend holding the pixels of every charta.
+ * Coordinates are top-down, pixels are 3 bytes each in BMP (BGR) order.
+ */
+public interface ChartaStore {
+
+    void create(String id, int width, int height) throws IOException;
+
+    /**
+     * Opens the charta for reading, or for reading and writing. Callers are responsible for locking.
+     */
+    Charta open(String id, boolean readOnly) throws IOException;
+
+    boolean exists(String id);
+
+    void delete(String id) throws IOException;
+
+    /**
+     * Number of rows the backend prefers to transfer at once; callers align bands to multiples of it.
+     */
+    int getBandHeight();
+}
@@ -0,0 +1,169 @@
+package com.example.chartographer.storage;
+
+import com.example.chartographer.config.Config;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * Decides where the file or directory of every charta lives.
+ * Chartas are spread over the roots listed in {@code chartographer.storage.roots}, the content directory if none,
+ * and every root is split into {@code chartographer.storage.shards} subdirectories by a hash of the id,
+ * so no directory grows with the number of chartas. A new charta goes to a root picked at random
+ * in proportion to its free space, among the roots with room for it, which spreads I/O over the volumes.
+ * <p>
+ * Paths are indexed by id. The index is rebuilt by {@link #scan} at startup and kept up to date by
+ * {@link #place} and {@link #forget}, so lookups never touch the disk. Chartas kept directly in a root,
+ * as before sharding, are indexed as well; the directories of the journal and of the tombstones are not.
+ */
+@Component
+public class ContentLayout {
+
+    public static final String JOURNAL_DIR = "journal";
+
+    public static final String TOMBSTONES_DIR = "tombstones";
+
+    private static final Set<String> RESERVED = Set.of(JOURNAL_DIR, TOMBSTONES_DIR);
+
+    private final String roots;
+    private final int shards;
+    private final int shardDigits;
+
+    private final Map<String, Path> index = new ConcurrentHashMap<>();
+
+    public ContentLayout(@Value("${chartographer.storage.roots:}") String roots,
+                         @Value("${chartographer.storage.shards:256}") int shards) {
+        this.roots = roots;
+        this.shards = shards;
+        this.shardDigits = shards > 1 ? Integer.toHexString(shards - 1).length() : 0;
+    }
+
+    public List<Path> getRoots() {
+        if (roots.isBlank()) {
+            return Config.pathToContent == null ? List.of() : List.of(Path.of(Config.pathToContent));
+        }
+        return Arrays.stream(roots.split(","))
+                .map(String::trim)
+                .filter(root -> !root.isEmpty())
+                .map(Path::of)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Returns the directory for the files kept beside the chartas, such as tombstones: the first root,
+     * or {@code null} if no root is configured.
+     */
+    public Path getHome() {
+        List<Path> candidates = getRoots();
+        return candidates.isEmpty() ? null : candidates.get(0);
+    }
+
+    /**
+     * Rebuilds the index from every root and returns the ids found. The store decides through {@code isCharta}
+     * whether an entry is a charta of its own; reserved names are skipped.
+     */
+    public Set<String> scan(Predicate<Path> isCharta) throws IOException {
+        index.clear();
+        for (Path root : getRoots()) {
+            if (!Files.isDirectory(root)) {
+                continue;
+            }
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(root)) {
+                for (Path entry : entries) {
+                    if (isShard(entry)) {
+                        try (DirectoryStream<Path> chartas = Files.newDirectoryStream(entry)) {
+                            for (Path charta : chartas) {
+                                if (isCharta.test(charta)) {
+                                    index.put(charta.getFileName().toString(), charta);
+                                }
+                            }
+                        }
+                    } else if (!RESERVED.contains(entry.getFileName().toString()) && isCharta.test(entry)) {
+                        index.putIfAbsent(entry.getFileName().toString(), entry);
+                    }
+                }
+            }
+        }
+        return new HashSet<>(index.keySet());
+    }
+
+    /**
+     * Returns the path of an existing charta, or {@code null} if there is none.
+     */
+    public Path locate(String id) {
+        return index.get(id);
+    }
+
+    /**
+     * Chooses the path of a new charta of {@code size} bytes and creates its shard directory.
+     * If no root has room for it, the root with the most free space is taken.
+     */
+    public Path place(String id, long size) throws IOException {
+        List<Path> candidates = getRoots();
+        if (candidates.isEmpty()) {
+            throw new IOException("No storage root is configured");
+        }
+        Path chosen = null;
+        Path roomiest = null;
+        long roomiestSpace = -1;
+        long total = 0;
+        for (Path root : candidates) {
+            Files.createDirectories(root);
+            long usable = Files.getFileStore(root).getUsableSpace();
+            if (usable > roomiestSpace) {
+                roomiest = root;
+                roomiestSpace = usable;
+            }
+            if (usable > 0 && usable >= size) {
+                total += usable;
+                if (ThreadLocalRandom.current().nextLong(total) < usable) {
+                    chosen = root;
+                }
+            }
+        }
+        Path root = chosen != null ? chosen : roomiest;
+        Path path = Files.createDirectories(shards > 1 ? shard(root, id) : root).resolve(id);
+        index.put(id, path);
+        return path;
+    }
+
+    public Set<String> getIds() {
+        return new HashSet<>(index.keySet());
+    }
+
+    public void forget(String id) {
+        index.remove(id);
+    }
+
+    private Path shard(Path root, String id) {
+        int hash = id.hashCode();
+        int shard = Math.floorMod(hash ^ (hash >>> 16), shards);
+        String name = Integer.toHexString(shard);
+        return root.resolve("0".repeat(shardDigits - name.length()) + name);
+    }
+
+    private boolean isShard(Path entry) {
+        String name = entry.getFileName().toString();
+        if (shards <= 1 || name.length() != shardDigits || !Files.isDirectory(entry)) {
+            return false;
+        }
+        try {
+            return Integer.parseInt(name, 16) < shards;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.example.chartographer.storage;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+@Getter
+@RequiredArgsConstructor
+public class StorageStats {
+    private final String codec;
+    private final long tiles;
+    private final long rawBytes;
+    private final long storedBytes;
+
+    public double getCompressionRatio() {
+        return storedBytes == 0 ? 1 : (double) rawBytes / storedBytes;
+    }
+}
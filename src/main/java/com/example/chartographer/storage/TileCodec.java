@@ -0,0 +1,112 @@
+package com.example.chartographer.storage;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of single tiles. Every tile is encoded on its own, so a fragment still touches only its tiles.
+ */
+public enum TileCodec {
+
+    NONE {
+        @Override
+        int encode(byte[] tile, byte[] dst, int offset) {
+            return -1;
+        }
+
+        @Override
+        void decode(byte[] src, int offset, int length, byte[] tile) throws IOException {
+            throw new IOException("Tile is not compressed");
+        }
+    },
+
+    /**
+     * Runs of equal pixels as a count byte followed by the pixel. Cheap and good enough for black and flat areas.
+     */
+    RLE {
+        @Override
+        int encode(byte[] tile, byte[] dst, int offset) {
+            int out = offset;
+            for (int i = 0; i < tile.length; ) {
+                int run = 1;
+                while (run < 256 && i + run * 3 < tile.length
+                        && tile[i + run * 3] == tile[i]
+                        && tile[i + run * 3 + 1] == tile[i + 1]
+                        && tile[i + run * 3 + 2] == tile[i + 2]) {
+                    run++;
+                }
+                if (out + 4 > dst.length) {
+                    return -1;
+                }
+                dst[out++] = (byte) (run - 1);
+                dst[out++] = tile[i];
+                dst[out++] = tile[i + 1];
+                dst[out++] = tile[i + 2];
+                i += run * 3;
+            }
+            return out - offset;
+        }
+
+        @Override
+        void decode(byte[] src, int offset, int length, byte[] tile) throws IOException {
+            int out = 0;
+            for (int i = offset; i + 4 <= offset + length; i += 4) {
+                int run = (src[i] & 0xFF) + 1;
+                if (out + run * 3 > tile.length) {
+                    throw new IOException("Tile is corrupted");
+                }
+                for (int k = 0; k < run; k++) {
+                    tile[out++] = src[i + 1];
+                    tile[out++] = src[i + 2];
+                    tile[out++] = src[i + 3];
+                }
+            }
+            if (out != tile.length) {
+                throw new IOException("Tile is corrupted");
+            }
+        }
+    },
+
+    /**
+     * Deflate at its fastest level, for tiles with texture that runs of pixels do not catch.
+     */
+    DEFLATE {
+        @Override
+        int encode(byte[] tile, byte[] dst, int offset) {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                deflater.setInput(tile);
+                deflater.finish();
+                int length = deflater.deflate(dst, offset, dst.length - offset);
+                return deflater.finished() ? length : -1;
+            } finally {
+                deflater.end();
+            }
+        }
+
+        @Override
+        void decode(byte[] src, int offset, int length, byte[] tile) throws IOException {
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(src, offset, length);
+                if (inflater.inflate(tile) != tile.length || !inflater.finished()) {
+                    throw new IOException("Tile is corrupted");
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Tile is corrupted", e);
+            } finally {
+                inflater.end();
+            }
+        }
+    };
+
+    /**
+     * Encodes the whole tile into {@code dst} from {@code offset}; returns the encoded length,
+     * or -1 if it does not fit, in which case the tile is stored raw.
+     */
+    abstract int encode(byte[] tile, byte[] dst, int offset);
+
+    abstract void decode(byte[] src, int offset, int length, byte[] tile) throws IOException;
+}
@@ -0,0 +1,336 @@
+package com.example.chartographer.storage;
+
+import com.example.chartographer.exception.NotFoundException;
+import com.example.chartographer.image.PixelBlitter;
+import com.example.chartographer.image.PixelRaster;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import org.springframework.util.FileSystemUtils;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps every charta as a directory of square tiles, so a fragment touches only the tiles it intersects
+ * and each tile is transferred with one sequential read or write.
+ * Tiles are stored raw, rows top-down, and always have the full tile size even on the charta edges.
+ * A tile file appears only when a fragment is first written into it; missing tiles are black.
+ * With a {@link TileCodec} configured, every tile is compressed on its own: a file of exactly the raw tile size
+ * is raw, any other starts with the ordinal of its codec. Tiles that do not shrink are kept raw.
+ * Since a tile then changes size, it is written to a synced temporary file that replaces it by an atomic move,
+ * so a failed or interrupted write leaves the previous tile whole; temporary files left by a crash are deleted
+ * at startup. Without a codec, raw tiles are rewritten in place.
+ * Dimensions of every charta are registered at creation and at startup. Directories are placed by the
+ * {@link ContentLayout}.
+ */
+@Component
+@Qualifier("backend")
+@ConditionalOnProperty(name = "chartographer.storage.type", havingValue = "tiled")
+public class TiledChartaStore implements ChartaStore {
+
+    private static final String META_FILE = "charta.meta";
+
+    private static final String TEMP_PREFIX = "tmp_";
+
+    private final int tileSize;
+
+    private final TileCodec codec;
+
+    private final ContentLayout layout;
+
+    private final Map<String, TileMeta> registry = new ConcurrentHashMap<>();
+
+    public TiledChartaStore(@Value("${chartographer.storage.tile-size:256}") int tileSize,
+                            @Value("${chartographer.storage.tile-codec:none}") String codec,
+                            ContentLayout layout) {
+        this.tileSize = tileSize;
+        this.codec = TileCodec.valueOf(codec.trim().toUpperCase());
+        this.layout = layout;
+    }
+
+    @PostConstruct
+    public void scan() throws IOException {
+        for (String id : layout.scan(dir -> Files.isRegularFile(dir.resolve(META_FILE)))) {
+            load(id);
+            deleteTemporaries(layout.locate(id));
+        }
+    }
+
+    @Override
+    public void create(String id, int width, int height) throws IOException {
+        long size = (long) ((width + tileSize - 1) / tileSize) * ((height + tileSize - 1) / tileSize)
+                * tileSize * tileSize * 3;
+        Path dir = Files.createDirectory(layout.place(id, size));
+        ByteBuffer meta = ByteBuffer.allocate(12).putInt(width).putInt(height).putInt(tileSize);
+        Files.write(dir.resolve(META_FILE), meta.array());
+        registry.put(id, new TileMeta(width, height));
+    }
+
+    @Override
+    public Charta open(String id, boolean readOnly) throws IOException {
+        TileMeta meta = registry.containsKey(id) ? registry.get(id) : load(id);
+        if (meta == null) {
+            throw new NotFoundException(id + " not found");
+        }
+        return new TiledCharta(path(id), meta.width, meta.height, tileSize, codec);
+    }
+
+    @Override
+    public boolean exists(String id) {
+        try {
+            return registry.containsKey(id) || load(id) != null;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void delete(String id) throws IOException {
+        registry.remove(id);
+        Path path = layout.locate(id);
+        layout.forget(id);
+        if (path != null) {
+            FileSystemUtils.deleteRecursively(path);
+        }
+    }
+
+    @Override
+    public int getBandHeight() {
+        return tileSize;
+    }
+
+    /**
+     * Walks every tile on disk; the ratio compares the raw size of the existing tiles to their size on disk.
+     */
+    public StorageStats getStats() throws IOException {
+        long tiles = 0;
+        long stored = 0;
+        for (Map.Entry<String, TileMeta> entry : registry.entrySet()) {
+            Path dir = layout.locate(entry.getKey());
+            if (dir == null) {
+                continue;
+            }
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "tile_*")) {
+                for (Path file : files) {
+                    tiles++;
+                    stored += Files.size(file);
+                }
+            } catch (NoSuchFileException e) {
+                // deleted meanwhile
+            }
+        }
+        return new StorageStats(codec.name().toLowerCase(), tiles, tiles * tileSize * tileSize * 3, stored);
+    }
+
+    private Path path(String id) {
+        Path path = layout.locate(id);
+        if (path == null) {
+            throw new NotFoundException(id + " not found");
+        }
+        return path;
+    }
+
+    /**
+     * Registers the charta if its directory holds a metadata file; returns {@code null} otherwise.
+     * A charta made with another tile size is refused, since locks and bands follow the configured one;
+     * the scan then stops the application from starting.
+     */
+    private TileMeta load(String id) throws IOException {
+        Path dir = layout.locate(id);
+        if (dir == null || !Files.isRegularFile(dir.resolve(META_FILE))) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(dir.resolve(META_FILE)));
+        TileMeta tileMeta = new TileMeta(buffer.getInt(), buffer.getInt());
+        int stored = buffer.getInt();
+        if (stored != tileSize) {
+            throw new IOException("Charta " + id + " has tiles of " + stored
+                    + " pixels, but chartographer.storage.tile-size is " + tileSize);
+        }
+        registry.put(id, tileMeta);
+        return tileMeta;
+    }
+
+    /**
+     * Deletes the temporary tiles of writes cut short by a crash; the tiles they were to replace are still whole.
+     */
+    private static void deleteTemporaries(Path dir) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, TEMP_PREFIX + "*")) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private static String tileName(int tx, int ty) {
+        return "tile_" + ty + "_" + tx;
+    }
+
+    private static class TileMeta {
+
+        private final int width;
+        private final int height;
+
+        TileMeta(int width, int height) {
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    private static class TiledCharta implements Charta {
+
+        private final Path dir;
+        private final int width;
+        private final int height;
+        private final int tileSize;
+        private final ByteBuffer tile;
+        private final PixelRaster tileRaster;
+        private final TileCodec codec;
+        private final Set<String> written = new HashSet<>();
+        private boolean replaced;
+        private byte[] encoded;
+
+        TiledCharta(Path dir, int width, int height, int tileSize, TileCodec codec) {
+            this.dir = dir;
+            this.width = width;
+            this.height = height;
+            this.tileSize = tileSize;
+            this.tile = ByteBuffer.allocate(tileSize * tileSize * 3);
+            this.tileRaster = new PixelRaster(tile, 0, tileSize, tileSize, tileSize * 3, false);
+            this.codec = codec;
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public void read(int x, int y, int width, int height, ByteBuffer dst) throws IOException {
+            PixelRaster target = PixelRaster.packed(dst, width, height);
+            for (int ty = y / tileSize; ty <= (y + height - 1) / tileSize; ty++) {
+                for (int tx = x / tileSize; tx <= (x + width - 1) / tileSize; tx++) {
+                    readTile(tx, ty);
+                    PixelBlitter.blit(tileRaster, x - tx * tileSize, y - ty * tileSize, target, 0, 0, width, height);
+                }
+            }
+            dst.position(dst.position() + width * height * 3);
+        }
+
+        @Override
+        public void write(int x, int y, int width, int height, ByteBuffer src) throws IOException {
+            PixelRaster source = PixelRaster.packed(src, width, height);
+            for (int ty = y / tileSize; ty <= (y + height - 1) / tileSize; ty++) {
+                for (int tx = x / tileSize; tx <= (x + width - 1) / tileSize; tx++) {
+                    int left = Math.max(x, tx * tileSize);
+                    int right = Math.min(x + width, (tx + 1) * tileSize);
+                    int top = Math.max(y, ty * tileSize);
+                    int bottom = Math.min(y + height, (ty + 1) * tileSize);
+                    if (right - left < tileSize || bottom - top < tileSize) {
+                        readTile(tx, ty);
+                    }
+                    PixelBlitter.blit(source, 0, 0, tileRaster, x - tx * tileSize, y - ty * tileSize, width, height);
+                    writeTile(tx, ty);
+                }
+            }
+            src.position(src.position() + width * height * 3);
+        }
+
+        @Override
+        public void force() throws IOException {
+            for (String name : written) {
+                try (FileChannel channel = FileChannel.open(dir.resolve(name), StandardOpenOption.WRITE)) {
+                    channel.force(false);
+                }
+            }
+            written.clear();
+            if (replaced) {
+                try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+                    channel.force(true);
+                }
+                replaced = false;
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+
+        private byte[] encoded() {
+            if (encoded == null) {
+                encoded = new byte[tile.capacity()];
+            }
+            return encoded;
+        }
+
+        private void readTile(int tx, int ty) throws IOException {
+            tile.clear();
+            try (FileChannel channel = FileChannel.open(dir.resolve(tileName(tx, ty)), StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size == tile.capacity()) {
+                    IoUtils.readFully(channel, tile, 0);
+                } else {
+                    ByteBuffer src = ByteBuffer.wrap(encoded()).limit((int) size);
+                    IoUtils.readFully(channel, src, 0);
+                    if (size < 1 || encoded[0] <= 0 || encoded[0] >= TileCodec.values().length) {
+                        throw new IOException("Tile " + tileName(tx, ty) + " is corrupted");
+                    }
+                    TileCodec.values()[encoded[0]].decode(encoded, 1, (int) size - 1, tile.array());
+                }
+            } catch (NoSuchFileException e) {
+                Arrays.fill(tile.array(), (byte) 0);
+            }
+            tile.clear();
+        }
+
+        private void writeTile(int tx, int ty) throws IOException {
+            tile.clear();
+            String name = tileName(tx, ty);
+            if (codec == TileCodec.NONE) {
+                try (FileChannel channel = FileChannel.open(dir.resolve(name),
+                        StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+                    long size = channel.size();
+                    if (size == 0 || size == tile.capacity()) {
+                        IoUtils.writeFully(channel, tile, 0);
+                        written.add(name);
+                        return;
+                    }
+                }
+            }
+            int length = codec == TileCodec.NONE ? -1 : codec.encode(tile.array(), encoded(), 1);
+            ByteBuffer data = tile;
+            if (length >= 0 && length + 1 < tile.capacity()) {
+                encoded[0] = (byte) codec.ordinal();
+                data = ByteBuffer.wrap(encoded, 0, length + 1);
+            }
+            Path temp = dir.resolve(TEMP_PREFIX + name);
+            try (FileChannel channel = FileChannel.open(temp,
+                    StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                IoUtils.writeFully(channel, data, 0);
+                channel.force(false);
+            }
+            Files.move(temp, dir.resolve(name), StandardCopyOption.ATOMIC_MOVE);
+            replaced = true;
+        }
+    }
+}
@@ -0,0 +1,426 @@
+package com.example.chartographer.soak;
+
+import com.example.chartographer.ChartographerApplication;
+import com.example.chartographer.config.Config;
+import com.example.chartographer.image.Bmp;
+import com.example.chartographer.soak.SaveLog.Save;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Soak test of the whole service over HTTP. Starts the application on a random port against a fresh temporary
+ * content directory, lets {@code clients} concurrent clients run a mix of create, save, get and delete for
+ * {@code warmup + duration} seconds and reports throughput and latency percentiles of the measured part,
+ * peak heap (clients included, they share the JVM) and peak disk usage of the content directory.
+ * <p>
+ * Saves go to a few shared chartas at random spots, so they overlap each other and the edges of the charta.
+ * Gets read the shared chartas and check every pixel against the {@link SaveLog}; at the end the shared chartas
+ * are read whole and every pixel must come from a save that was not followed by another save of that pixel.
+ * Creates and deletes work on small chartas of their own, a deleted charta must answer 404 at once.
+ * <p>
+ * Arguments are {@code name=value} pairs overriding {@link #DEFAULTS}; arguments starting with {@code --} go to
+ * the application, e.g. {@code --chartographer.storage.type=tiled}. Exits with 1 when a check fails
+ * or a request gets an unexpected status; 503 answers of a full queue are only counted.
+ */
+public class ChartaSoak {
+
+    private static final Map<String, String> DEFAULTS = Map.of(
+            "clients", "32",
+            "warmup", "10",
+            "duration", "60",
+            "chartas", "4",
+            "width", "4000",
+            "height", "4000",
+            "fragment", "600",
+            "mix", "save=50,get=40,create=5,delete=5",
+            "seed", "1");
+
+    private final Map<String, String> options;
+    private final HttpClient http = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    private final SaveLog saves = new SaveLog();
+    private final Queue<String> scratch = new ConcurrentLinkedQueue<>();
+    private final AtomicLong mismatches = new AtomicLong();
+    private final long started = System.nanoTime();
+    private final String[] operations;
+    private final int[] weights;
+    private String base;
+    private String[] shared;
+    private int width;
+    private int height;
+    private int fragment;
+    private long measureFrom;
+
+    private ChartaSoak(Map<String, String> options) {
+        this.options = options;
+        String[] mix = options.get("mix").split(",");
+        operations = new String[mix.length];
+        weights = new int[mix.length];
+        int total = 0;
+        for (int i = 0; i < mix.length; i++) {
+            String[] entry = mix[i].trim().split("=");
+            operations[i] = entry[0];
+            total += Integer.parseInt(entry[1]);
+            weights[i] = total;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new TreeMap<>(DEFAULTS);
+        List<String> appArgs = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                appArgs.add(arg);
+            } else {
+                String[] option = arg.split("=", 2);
+                if (!DEFAULTS.containsKey(option[0]) || option.length < 2) {
+                    throw new IllegalArgumentException("Unknown option " + arg + ", known are " + DEFAULTS.keySet());
+                }
+                options.put(option[0], option[1]);
+            }
+        }
+        appArgs.add("--server.port=0");
+        if (appArgs.stream().noneMatch(arg -> arg.startsWith("--logging.level.com.example.chartographer="))) {
+            appArgs.add("--logging.level.com.example.chartographer=WARN");
+        }
+
+        Path content = Files.createTempDirectory("chartographer-soak");
+        Config.pathToContent = content.toString();
+        boolean passed;
+        try (ConfigurableApplicationContext context =
+                     SpringApplication.run(ChartographerApplication.class, appArgs.toArray(new String[0]))) {
+            ChartaSoak soak = new ChartaSoak(options);
+            soak.base = "http://localhost:" + context.getEnvironment().getProperty("local.server.port") + "/chartas";
+            passed = soak.run(content);
+        } finally {
+            FileSystemUtils.deleteRecursively(content);
+        }
+        System.exit(passed ? 0 : 1);
+    }
+
+    private boolean run(Path content) throws Exception {
+        int clients = Integer.parseInt(options.get("clients"));
+        long warmup = TimeUnit.SECONDS.toNanos(Long.parseLong(options.get("warmup")));
+        long duration = TimeUnit.SECONDS.toNanos(Long.parseLong(options.get("duration")));
+        width = Integer.parseInt(options.get("width"));
+        height = Integer.parseInt(options.get("height"));
+        fragment = Integer.parseInt(options.get("fragment"));
+        long seed = Long.parseLong(options.get("seed"));
+        System.out.println("Soak " + options + " against " + base);
+
+        shared = new String[Integer.parseInt(options.get("chartas"))];
+        for (int i = 0; i < shared.length; i++) {
+            shared[i] = create(width, height);
+        }
+
+        long[] peaks = new long[2];
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+        sampler.scheduleAtFixedRate(() -> {
+            peaks[0] = Math.max(peaks[0], ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+            peaks[1] = Math.max(peaks[1], diskUsage(content));
+        }, 0, 1, TimeUnit.SECONDS);
+
+        measureFrom = System.nanoTime() + warmup;
+        long deadline = measureFrom + duration;
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        List<Future<Latencies>> results = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            Random random = new Random(seed + i);
+            results.add(pool.submit(() -> client(random, deadline)));
+        }
+        Latencies latencies = new Latencies();
+        for (Future<Latencies> result : results) {
+            latencies.merge(result.get());
+        }
+        pool.shutdown();
+        sampler.shutdown();
+        sampler.awaitTermination(1, TimeUnit.MINUTES);
+
+        latencies.print(duration / 1e9);
+        System.out.printf("peak heap %.1f MB, peak disk %.1f MB, final disk %.1f MB%n",
+                peaks[0] / 1e6, peaks[1] / 1e6, diskUsage(content) / 1e6);
+        long checked = mismatches.get();
+        System.out.println("pixel mismatches in gets: " + checked);
+        long verified = 0;
+        for (int i = 0; i < shared.length; i++) {
+            verified += verify(i);
+        }
+        System.out.println("pixel mismatches in final chartas: " + verified);
+        boolean passed = checked == 0 && verified == 0 && latencies.failed() == 0;
+        System.out.println(passed ? "PASSED" : "FAILED");
+        return passed;
+    }
+
+    private Latencies client(Random random, long deadline) throws InterruptedException {
+        Latencies latencies = new Latencies();
+        while (System.nanoTime() < deadline) {
+            int pick = random.nextInt(weights[weights.length - 1]);
+            int index = 0;
+            while (weights[index] <= pick) {
+                index++;
+            }
+            String operation = operations[index];
+            long start = System.nanoTime();
+            int status;
+            try {
+                status = perform(operation, random);
+            } catch (IOException e) {
+                status = -1;
+            }
+            long end = System.nanoTime();
+            if (start < measureFrom) {
+                continue;
+            }
+            if (status == 503) {
+                latencies.reject(operation);
+            } else if (status < 200 || status > 201) {
+                System.out.println(operation + " answered " + status);
+                latencies.fail(operation);
+            } else {
+                latencies.record(operation, end - start);
+            }
+        }
+        return latencies;
+    }
+
+    private int perform(String operation, Random random) throws IOException, InterruptedException {
+        switch (operation) {
+            case "save":
+                return save(random);
+            case "get":
+                return get(random);
+            case "create":
+                return createScratch();
+            case "delete":
+                return deleteScratch();
+            default:
+                throw new IllegalArgumentException("Unknown operation " + operation);
+        }
+    }
+
+    private int save(Random random) throws InterruptedException {
+        int charta = random.nextInt(shared.length);
+        int w = 1 + random.nextInt(fragment);
+        int h = 1 + random.nextInt(fragment);
+        int x = random.nextInt(width - w / 2);
+        int y = random.nextInt(height - h / 2);
+        Save save = saves.add(charta, x, y, w, h, now());
+        int status;
+        try {
+            status = http.send(HttpRequest.newBuilder(URI.create(base + "/" + shared[charta]
+                                    + "?x=" + x + "&y=" + y + "&width=" + w + "&height=" + h))
+                            .header("Content-Type", "image/bmp")
+                            .timeout(Duration.ofMinutes(1))
+                            .POST(HttpRequest.BodyPublishers.ofByteArray(bmp(w, h, save.colour)))
+                            .build(),
+                    HttpResponse.BodyHandlers.discarding()).statusCode();
+        } catch (IOException e) {
+            save.state = SaveLog.IN_DOUBT;
+            return -1;
+        }
+        save.end = now();
+        save.state = status == 200 ? SaveLog.DONE : SaveLog.FAILED;
+        return status;
+    }
+
+    private int get(Random random) throws IOException, InterruptedException {
+        int charta = random.nextInt(shared.length);
+        int w = 1 + random.nextInt(fragment);
+        int h = 1 + random.nextInt(fragment);
+        int x = random.nextInt(width - w / 2);
+        int y = random.nextInt(height - h / 2);
+        HttpResponse<byte[]> response = read(shared[charta], x, y, w, h);
+        if (response.statusCode() == 200) {
+            mismatches.addAndGet(check(charta, x, y, w, h, response.body(), null));
+        }
+        return response.statusCode();
+    }
+
+    private int createScratch() throws IOException, InterruptedException {
+        HttpResponse<String> response = http.send(HttpRequest.newBuilder(URI.create(base + "?width=1000&height=1000"))
+                .POST(HttpRequest.BodyPublishers.noBody()).build(), HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() == 201) {
+            scratch.add(response.body());
+        }
+        return response.statusCode();
+    }
+
+    private int deleteScratch() throws IOException, InterruptedException {
+        String id = scratch.poll();
+        if (id == null) {
+            return createScratch();
+        }
+        int status = http.send(HttpRequest.newBuilder(URI.create(base + "/" + id)).DELETE().build(),
+                HttpResponse.BodyHandlers.discarding()).statusCode();
+        if (status == 200 && read(id, 0, 0, 1, 1).statusCode() != 404) {
+            System.out.println("Deleted charta " + id + " can still be read");
+            mismatches.incrementAndGet();
+        }
+        return status;
+    }
+
+    private String create(int w, int h) throws IOException, InterruptedException {
+        HttpResponse<String> response = http.send(HttpRequest.newBuilder(URI.create(base + "?width=" + w
+                + "&height=" + h)).POST(HttpRequest.BodyPublishers.noBody()).build(),
+                HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 201) {
+            throw new IllegalStateException("Create answered " + response.statusCode());
+        }
+        return response.body();
+    }
+
+    private HttpResponse<byte[]> read(String id, int x, int y, int w, int h) throws IOException, InterruptedException {
+        return http.send(HttpRequest.newBuilder(URI.create(base + "/" + id + "?x=" + x + "&y=" + y
+                        + "&width=" + w + "&height=" + h))
+                .header("Accept", "image/bmp")
+                .timeout(Duration.ofMinutes(1))
+                .GET().build(), HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    /**
+     * Reads the shared charta whole once every client is done and returns the number of pixels
+     * the saves cannot explain.
+     */
+    private long verify(int charta) throws IOException, InterruptedException {
+        int[] latest = new int[width * height];
+        Arrays.fill(latest, -1);
+        for (Save save : saves.all()) {
+            if (save.charta != charta || save.state != SaveLog.DONE) {
+                continue;
+            }
+            for (int py = save.y; py < Math.min(save.y + save.height, height); py++) {
+                for (int px = save.x; px < Math.min(save.x + save.width, width); px++) {
+                    latest[py * width + px] = Math.max(latest[py * width + px], save.start);
+                }
+            }
+        }
+        long wrong = 0;
+        for (int y = 0; y < height; y += 5000) {
+            for (int x = 0; x < width; x += 5000) {
+                int w = Math.min(5000, width - x);
+                int h = Math.min(5000, height - y);
+                HttpResponse<byte[]> response = read(shared[charta], x, y, w, h);
+                if (response.statusCode() != 200) {
+                    throw new IllegalStateException("Final read answered " + response.statusCode());
+                }
+                wrong += check(charta, x, y, w, h, response.body(), latest);
+            }
+        }
+        return wrong;
+    }
+
+    /**
+     * Checks every pixel of a BMP read from the shared charta: black or written by a save covering it.
+     * With {@code latest}, the start of the last finished save of each pixel, the save must also have ended
+     * after that start and black is only right where no save finished.
+     */
+    private long check(int charta, int x, int y, int w, int h, byte[] bmp, int[] latest) {
+        if (Bmp.readInt(bmp, Bmp.WIDTH_OFFSET) != w || Bmp.readInt(bmp, Bmp.HEIGHT_OFFSET) != h) {
+            System.out.println("Read of " + w + "x" + h + " returned a different size");
+            return 1;
+        }
+        long wrong = 0;
+        int rowSize = Bmp.rowSize(w);
+        for (int row = 0; row < h; row++) {
+            int offset = Bmp.HEADER_SIZE + (h - 1 - row) * rowSize;
+            for (int col = 0; col < w; col++) {
+                int px = x + col;
+                int py = y + row;
+                int p = offset + col * 3;
+                int rgb = (bmp[p + 2] & 0xFF) << 16 | (bmp[p + 1] & 0xFF) << 8 | bmp[p] & 0xFF;
+                String problem = problem(charta, px, py, rgb, latest);
+                if (problem != null) {
+                    if (wrong++ == 0) {
+                        System.out.printf("Charta %d pixel (%d, %d) is %06x: %s%n", charta, px, py, rgb, problem);
+                    }
+                }
+            }
+        }
+        return wrong;
+    }
+
+    private String problem(int charta, int px, int py, int rgb, int[] latest) {
+        boolean inside = px < width && py < height;
+        int last = latest != null && inside ? latest[py * width + px] : -1;
+        if (rgb == 0) {
+            return last >= 0 ? "a finished save was lost" : null;
+        }
+        Save save = saves.byColour(rgb);
+        if (!inside || save == null || !save.covers(charta, px, py)) {
+            return "no save covers it";
+        }
+        if (save.state == SaveLog.FAILED) {
+            return "its save failed";
+        }
+        if (save.state == SaveLog.DONE && save.end < last) {
+            return "a later save was lost";
+        }
+        return null;
+    }
+
+    private int now() {
+        return (int) TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+    }
+
+    private static byte[] bmp(int width, int height, int rgb) {
+        byte[] bmp = new byte[Bmp.HEADER_SIZE + Bmp.rowSize(width) * height];
+        System.arraycopy(Bmp.header(width, height), 0, bmp, 0, Bmp.HEADER_SIZE);
+        for (int row = 0; row < height; row++) {
+            int offset = Bmp.HEADER_SIZE + row * Bmp.rowSize(width);
+            for (int col = 0; col < width; col++) {
+                bmp[offset + col * 3] = (byte) rgb;
+                bmp[offset + col * 3 + 1] = (byte) (rgb >> 8);
+                bmp[offset + col * 3 + 2] = (byte) (rgb >> 16);
+            }
+        }
+        return bmp;
+    }
+
+    private static long diskUsage(Path content) {
+        long[] size = new long[1];
+        try {
+            Files.walkFileTree(content, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    size[0] += attrs.size();
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            return size[0];
+        }
+        return size[0];
+    }
+}
@@ -0,0 +1,77 @@
+package com.example.chartographer.soak;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Latencies and outcomes of the requests of one client, per operation; merged once the clients are done.
+ */
+class Latencies {
+
+    private final Map<String, Operation> operations = new TreeMap<>();
+
+    void record(String operation, long nanos) {
+        operations.computeIfAbsent(operation, k -> new Operation()).add(nanos);
+    }
+
+    void reject(String operation) {
+        operations.computeIfAbsent(operation, k -> new Operation()).rejected++;
+    }
+
+    void fail(String operation) {
+        operations.computeIfAbsent(operation, k -> new Operation()).failed++;
+    }
+
+    void merge(Latencies other) {
+        other.operations.forEach((name, operation) -> operations.computeIfAbsent(name, k -> new Operation())
+                .merge(operation));
+    }
+
+    long failed() {
+        return operations.values().stream().mapToLong(operation -> operation.failed).sum();
+    }
+
+    void print(double seconds) {
+        System.out.printf("%-8s %9s %9s %7s %9s %9s %9s %9s %9s%n",
+                "op", "count", "rejected", "failed", "ops/s", "p50 ms", "p99 ms", "p99.9 ms", "max ms");
+        operations.forEach((name, operation) -> {
+            long[] sorted = Arrays.copyOf(operation.nanos, operation.count);
+            Arrays.sort(sorted);
+            System.out.printf("%-8s %9d %9d %7d %9.1f %9.2f %9.2f %9.2f %9.2f%n",
+                    name, sorted.length, operation.rejected, operation.failed, sorted.length / seconds,
+                    millis(sorted, 0.5), millis(sorted, 0.99), millis(sorted, 0.999), millis(sorted, 1));
+        });
+    }
+
+    private static double millis(long[] sorted, double quantile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(quantile * sorted.length) - 1;
+        return sorted[Math.max(index, 0)] / 1e6;
+    }
+
+    private static class Operation {
+
+        private long[] nanos = new long[1024];
+        private int count;
+        private long rejected;
+        private long failed;
+
+        void add(long value) {
+            if (count == nanos.length) {
+                nanos = Arrays.copyOf(nanos, count * 2);
+            }
+            nanos[count++] = value;
+        }
+
+        void merge(Operation other) {
+            for (int i = 0; i < other.count; i++) {
+                add(other.nanos[i]);
+            }
+            rejected += other.rejected;
+            failed += other.failed;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.example.chartographer.soak;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Every save sent to the shared chartas. Save {@code n} fills its fragment with colour {@code n + 1},
+ * so a pixel tells which save wrote it and black means none did.
+ * <p>
+ * Times are milliseconds since the start of the run: a save starts before its request is sent and ends once its
+ * response is in. A save that started after another one ended was applied after it, so it must win every pixel
+ * both cover; saves whose times overlap may win in either order.
+ */
+class SaveLog {
+
+    static final int PENDING = 0;
+    static final int DONE = 1;
+    static final int FAILED = 2;
+    static final int IN_DOUBT = 3;
+
+    private final List<Save> saves = new ArrayList<>();
+
+    synchronized Save add(int charta, int x, int y, int width, int height, int start) {
+        if (saves.size() == 0xFFFFFE) {
+            throw new IllegalStateException("Out of fragment colours");
+        }
+        Save save = new Save(saves.size() + 1, charta, x, y, width, height, start);
+        saves.add(save);
+        return save;
+    }
+
+    /**
+     * Returns the save that wrote colour {@code rgb}, or null when no save has it.
+     */
+    synchronized Save byColour(int rgb) {
+        return rgb < 1 || rgb > saves.size() ? null : saves.get(rgb - 1);
+    }
+
+    synchronized List<Save> all() {
+        return new ArrayList<>(saves);
+    }
+
+    static class Save {
+
+        final int colour;
+        final int charta;
+        final int x;
+        final int y;
+        final int width;
+        final int height;
+        final int start;
+        volatile int end;
+        volatile int state = PENDING;
+
+        Save(int colour, int charta, int x, int y, int width, int height, int start) {
+            this.colour = colour;
+            this.charta = charta;
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+            this.start = start;
+        }
+
+        boolean covers(int charta, int px, int py) {
+            return this.charta == charta && px >= x && px < x + width && py >= y && py < y + height;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.example.chartographer;
+
+import com.example.chartographer.storage.BmpChartaStore;
+import com.example.chartographer.storage.Charta;
+import com.example.chartographer.storage.ContentLayout;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class BmpChartaStoreTest {
+
+    @TempDir
+    static Path content;
+
+    private final ContentLayout layout = new ContentLayout(content.toString(), 256);
+
+    @Test
+    public void mmap_windows_match_positional_io() throws IOException {
+        BmpChartaStore plain = new BmpChartaStore(false, 0, 256, layout);
+        plain.create("plain", 13, 11);
+        ByteBuffer fragment = ByteBuffer.allocate(9 * 7 * 3);
+        for (int i = 0; i < fragment.capacity(); i++) {
+            fragment.put((byte) (i * 7 + 1));
+        }
+        try (Charta charta = plain.open("plain", false)) {
+            charta.write(2, 3, 9, 7, fragment.flip());
+        }
+
+        for (long windowSize : new long[]{100, 1 << 16}) {
+            BmpChartaStore mapped = new BmpChartaStore(true, windowSize, 256, layout);
+            String id = "mapped" + windowSize;
+            mapped.create(id, 13, 11);
+            try (Charta charta = mapped.open(id, false)) {
+                charta.write(2, 3, 9, 7, fragment.flip());
+            }
+            Assertions.assertArrayEquals(Files.readAllBytes(layout.locate("plain")),
+                    Files.readAllBytes(layout.locate(id)));
+
+            ByteBuffer actual = ByteBuffer.allocate(9 * 7 * 3);
+            try (Charta charta = mapped.open(id, true)) {
+                charta.read(2, 3, 9, 7, actual);
+            }
+            Assertions.assertArrayEquals(fragment.array(), actual.array());
+            Assertions.assertEquals(actual.capacity(), actual.position());
+        }
+    }
+
+    @Test
+    public void pooled_files_survive_eviction_and_delete() throws IOException {
+        BmpChartaStore store = new BmpChartaStore(false, 0, 1, layout);
+        store.create("first", 4, 4);
+        store.create("second", 4, 4);
+        ByteBuffer pixel = ByteBuffer.wrap(new byte[]{1, 2, 3});
+
+        try (Charta first = store.open("first", false)) {
+            try (Charta second = store.open("second", false)) {
+                second.write(1, 1, 1, 1, pixel);
+            }
+            first.write(2, 2, 1, 1, pixel.flip());
+        }
+        try (Charta second = store.open("second", true)) {
+            ByteBuffer actual = ByteBuffer.allocate(3);
+            second.read(1, 1, 1, 1, actual);
+            Assertions.assertArrayEquals(pixel.array(), actual.array());
+        }
+
+        BmpChartaStore restarted = new BmpChartaStore(false, 0, 1, layout);
+        restarted.scan();
+        try (Charta first = restarted.open("first", true)) {
+            Assertions.assertEquals(4, first.getWidth());
+            ByteBuffer actual = ByteBuffer.allocate(3);
+            first.read(2, 2, 1, 1, actual);
+            Assertions.assertArrayEquals(pixel.array(), actual.array());
+        }
+
+        Path firstPath = layout.locate("first");
+        restarted.delete("first");
+        Assertions.assertFalse(restarted.exists("first"));
+        Assertions.assertFalse(Files.exists(firstPath));
+        restarted.closeAll();
+        store.closeAll();
+    }
+}
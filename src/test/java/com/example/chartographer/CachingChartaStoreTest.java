@@ -0,0 +1,71 @@
+package com.example.chartographer;
+
+import com.example.chartographer.storage.BmpChartaStore;
+import com.example.chartographer.storage.CachingChartaStore;
+import com.example.chartographer.storage.Charta;
+import com.example.chartographer.storage.ContentLayout;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+public class CachingChartaStoreTest {
+
+    @TempDir
+    static Path content;
+
+    private final ContentLayout layout = new ContentLayout(content.toString(), 256);
+
+    @Test
+    public void hit_miss_and_invalidation_on_write() throws IOException {
+        CachingChartaStore store = new CachingChartaStore(new BmpChartaStore(false, 0, 256, layout), 1 << 20, 8, false);
+        store.create("cached", 20, 100);
+
+        Assertions.assertArrayEquals(new byte[5 * 5 * 3], read(store, "cached", 6, 10, 5, 5));
+        Assertions.assertEquals(0, store.getStats().getHits());
+        Assertions.assertEquals(2, store.getStats().getMisses());
+
+        read(store, "cached", 6, 10, 5, 5);
+        Assertions.assertEquals(2, store.getStats().getHits());
+
+        byte[] fragment = new byte[3 * 2 * 3];
+        Arrays.fill(fragment, (byte) 7);
+        try (Charta charta = store.open("cached", false)) {
+            charta.write(7, 11, 3, 2, ByteBuffer.wrap(fragment));
+        }
+        byte[] actual = read(store, "cached", 7, 11, 3, 2);
+        Assertions.assertArrayEquals(fragment, actual);
+        Assertions.assertEquals(4, store.getStats().getMisses());
+
+        store.delete("cached");
+        Assertions.assertEquals(0, store.getStats().getBlocks());
+        Assertions.assertEquals(0, store.getStats().getBytes());
+    }
+
+    @Test
+    public void evicts_least_recently_used_blocks() throws IOException {
+        CachingChartaStore store = new CachingChartaStore(new BmpChartaStore(false, 0, 256, layout), 2 * 8 * 64 * 3, 8, true);
+        store.create("evicted", 24, 64);
+
+        read(store, "evicted", 0, 0, 1, 1);
+        read(store, "evicted", 8, 0, 1, 1);
+        read(store, "evicted", 0, 0, 1, 1);
+        read(store, "evicted", 16, 0, 1, 1);
+        Assertions.assertEquals(1, store.getStats().getEvictions());
+        Assertions.assertEquals(2, store.getStats().getBlocks());
+
+        read(store, "evicted", 0, 0, 1, 1);
+        Assertions.assertEquals(2, store.getStats().getHits());
+    }
+
+    private byte[] read(CachingChartaStore store, String id, int x, int y, int width, int height) throws IOException {
+        ByteBuffer dst = ByteBuffer.allocate(width * height * 3);
+        try (Charta charta = store.open(id, true)) {
+            charta.read(x, y, width, height, dst);
+        }
+        return dst.array();
+    }
+}
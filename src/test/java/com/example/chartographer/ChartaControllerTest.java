@@ -1,20 +1,29 @@
 package com.example.chartographer;
 
+import com.example.chartographer.exception.BadRequestException;
 import com.example.chartographer.exception.NotFoundException;
+import com.example.chartographer.image.ImageFormat;
 import com.example.chartographer.service.ChartaService;
+import com.example.chartographer.service.FragmentResult;
+import org.hamcrest.Matchers;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mockito;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.actuate.metrics.AutoConfigureMetrics;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
-import org.springframework.core.io.ByteArrayResource;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
 import org.springframework.test.web.servlet.result.MockMvcResultMatchers;
 
+import java.io.OutputStream;
+import java.util.List;
+
 @SpringBootTest
 @AutoConfigureMockMvc
+@AutoConfigureMetrics
 public class ChartaControllerTest {
 
     @MockBean
@@ -65,13 +74,17 @@ public class ChartaControllerTest {
     @Test
     public void save_return_200() throws Exception {
 
-        mockMvc.perform(MockMvcRequestBuilders.post("/chartas/1")
+        MvcResult result = mockMvc.perform(MockMvcRequestBuilders.post("/chartas/1")
                         .param("width", "150")
                         .param("height", "150")
                         .param("x", "0")
                         .param("y", "0")
                         .contentType("image/bmp")
                 )
+                .andExpect(MockMvcResultMatchers.request().asyncStarted())
+                .andReturn();
+
+        mockMvc.perform(MockMvcRequestBuilders.asyncDispatch(result))
                 .andExpect(MockMvcResultMatchers.status().isOk());
     }
 
@@ -112,22 +125,123 @@ public class ChartaControllerTest {
                 .andExpect(MockMvcResultMatchers.status().isBadRequest());
     }
 
+    @Test
+    public void saveBatch_return_200_and_results() throws Exception {
+
+        Mockito.when(service.saveBatch(Mockito.anyString(), Mockito.any()))
+                .thenReturn(List.of(new FragmentResult(0, 200, null), new FragmentResult(1, 400, "X/Y out of range")));
+
+        MvcResult result = mockMvc.perform(MockMvcRequestBuilders.post("/chartas/{id}/batch", 1)
+                        .contentType("application/octet-stream")
+                )
+                .andExpect(MockMvcResultMatchers.request().asyncStarted())
+                .andReturn();
+
+        mockMvc.perform(MockMvcRequestBuilders.asyncDispatch(result))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(MockMvcResultMatchers.jsonPath("$[1].status").value(400))
+                .andExpect(MockMvcResultMatchers.jsonPath("$[1].message").value("X/Y out of range"));
+    }
+
     @Test
     public void get_return_200_and_byteArray() throws Exception {
 
-        ByteArrayResource resource = new ByteArrayResource(new byte[]{25, 25, 15, 120});
-        Mockito.when(service.get(Mockito.anyString(), Mockito.anyInt(), Mockito.anyInt(), Mockito.anyInt(), Mockito.anyInt()))
-                .thenReturn(resource);
+        byte[] bytes = new byte[]{25, 25, 15, 120};
+        Mockito.doAnswer(invocation -> {
+            invocation.getArgument(6, OutputStream.class).write(bytes);
+            return null;
+        }).when(service).get(Mockito.anyString(), Mockito.anyInt(), Mockito.anyInt(), Mockito.anyInt(), Mockito.anyInt(),
+                Mockito.eq(ImageFormat.BMP), Mockito.any(OutputStream.class));
 
-        mockMvc.perform(MockMvcRequestBuilders.get("/chartas/{id}", 10)
+        MvcResult result = mockMvc.perform(MockMvcRequestBuilders.get("/chartas/{id}", 10)
                         .param("width", "200")
                         .param("height", "150")
                         .param("x", "0")
                         .param("y", "0")
                 )
+                .andExpect(MockMvcResultMatchers.request().asyncStarted())
+                .andReturn();
+
+        mockMvc.perform(MockMvcRequestBuilders.asyncDispatch(result))
                 .andExpect(MockMvcResultMatchers.content().contentType("image/bmp"))
                 .andExpect(MockMvcResultMatchers.status().isOk())
-                .andExpect(MockMvcResultMatchers.content().bytes(resource.getByteArray()));
+                .andExpect(MockMvcResultMatchers.content().bytes(bytes));
+    }
+
+    @Test
+    public void get_negotiates_png() throws Exception {
+
+        MvcResult result = mockMvc.perform(MockMvcRequestBuilders.get("/chartas/{id}", 10)
+                        .param("width", "200")
+                        .param("height", "150")
+                        .param("x", "0")
+                        .param("y", "0")
+                        .header("Accept", "image/png, image/bmp;q=0.5")
+                )
+                .andExpect(MockMvcResultMatchers.request().asyncStarted())
+                .andReturn();
+
+        mockMvc.perform(MockMvcRequestBuilders.asyncDispatch(result))
+                .andExpect(MockMvcResultMatchers.content().contentType("image/png"))
+                .andExpect(MockMvcResultMatchers.status().isOk());
+        Mockito.verify(service).get(Mockito.eq("10"), Mockito.eq(0), Mockito.eq(0), Mockito.eq(200), Mockito.eq(150),
+                Mockito.eq(ImageFormat.PNG), Mockito.any(OutputStream.class));
+    }
+
+    @Test
+    public void get_return_304_when_etag_matches() throws Exception {
+
+        Mockito.when(service.etag("10", 0, 150, ImageFormat.BMP)).thenReturn("\"1-2-bmp\"");
+
+        MvcResult result = mockMvc.perform(MockMvcRequestBuilders.get("/chartas/{id}", 10)
+                        .param("width", "200")
+                        .param("height", "150")
+                        .param("x", "0")
+                        .param("y", "0")
+                        .header("If-None-Match", "\"1-2-bmp\"")
+                )
+                .andExpect(MockMvcResultMatchers.request().asyncStarted())
+                .andReturn();
+
+        mockMvc.perform(MockMvcRequestBuilders.asyncDispatch(result))
+                .andExpect(MockMvcResultMatchers.status().isNotModified())
+                .andExpect(MockMvcResultMatchers.header().string("ETag", "\"1-2-bmp\""));
+        Mockito.verify(service, Mockito.never()).get(Mockito.anyString(), Mockito.anyInt(), Mockito.anyInt(),
+                Mockito.anyInt(), Mockito.anyInt(), Mockito.any(ImageFormat.class), Mockito.any(OutputStream.class));
+
+        result = mockMvc.perform(MockMvcRequestBuilders.get("/chartas/{id}", 10)
+                        .param("width", "200")
+                        .param("height", "150")
+                        .param("x", "0")
+                        .param("y", "0")
+                        .header("If-None-Match", "\"1-1-bmp\"")
+                )
+                .andExpect(MockMvcResultMatchers.request().asyncStarted())
+                .andReturn();
+
+        mockMvc.perform(MockMvcRequestBuilders.asyncDispatch(result))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(MockMvcResultMatchers.header().string("ETag", "\"1-2-bmp\""));
+    }
+
+    @Test
+    public void get_return_400_when_service_rejects_fragment() throws Exception {
+
+        Mockito.doThrow(new BadRequestException("X/Y out of range")).when(service).get(Mockito.anyString(),
+                Mockito.anyInt(), Mockito.anyInt(), Mockito.anyInt(), Mockito.anyInt(), Mockito.any(ImageFormat.class),
+                Mockito.any(OutputStream.class));
+
+        MvcResult result = mockMvc.perform(MockMvcRequestBuilders.get("/chartas/{id}", 10)
+                        .param("width", "200")
+                        .param("height", "150")
+                        .param("x", "0")
+                        .param("y", "0")
+                )
+                .andExpect(MockMvcResultMatchers.request().asyncStarted())
+                .andReturn();
+
+        mockMvc.perform(MockMvcRequestBuilders.asyncDispatch(result))
+                .andExpect(MockMvcResultMatchers.status().isBadRequest());
     }
 
     @Test
@@ -164,10 +278,43 @@ public class ChartaControllerTest {
                 .andExpect(MockMvcResultMatchers.status().isBadRequest());
     }
 
+    @Test
+    public void preview_return_200() throws Exception {
+
+        MvcResult result = mockMvc.perform(MockMvcRequestBuilders.get("/chartas/{id}/preview", 10)
+                        .param("scale", "16")
+                )
+                .andExpect(MockMvcResultMatchers.request().asyncStarted())
+                .andReturn();
+
+        mockMvc.perform(MockMvcRequestBuilders.asyncDispatch(result))
+                .andExpect(MockMvcResultMatchers.content().contentType("image/bmp"))
+                .andExpect(MockMvcResultMatchers.status().isOk());
+    }
+
+    @Test
+    public void preview_return_400_when_wrong_params() throws Exception {
+
+        mockMvc.perform(MockMvcRequestBuilders.get("/chartas/{id}/preview", 10)
+                        .param("scale", "1")
+                )
+                .andExpect(MockMvcResultMatchers.status().isBadRequest());
+
+        mockMvc.perform(MockMvcRequestBuilders.get("/chartas/{id}/preview", 10)
+                        .param("scale", "2")
+                        .param("width", "5001")
+                )
+                .andExpect(MockMvcResultMatchers.status().isBadRequest());
+    }
+
     @Test
     public void delete_return_200() throws Exception {
 
-        mockMvc.perform(MockMvcRequestBuilders.delete("/chartas/{id}", 10))
+        MvcResult result = mockMvc.perform(MockMvcRequestBuilders.delete("/chartas/{id}", 10))
+                .andExpect(MockMvcResultMatchers.request().asyncStarted())
+                .andReturn();
+
+        mockMvc.perform(MockMvcRequestBuilders.asyncDispatch(result))
                 .andExpect(MockMvcResultMatchers.status().isOk());
     }
 
@@ -179,4 +326,88 @@ public class ChartaControllerTest {
         mockMvc.perform(MockMvcRequestBuilders.delete("/chartas/{id}", 10))
                 .andExpect(MockMvcResultMatchers.status().isNotFound());
     }
+
+    @Test
+    public void pyramid_level_return_404() throws Exception {
+
+        String level = "0f6d3d2c-8f3c-4a8e-9d57-3b9d1f0a7e21.L1";
+        Mockito.doCallRealMethod().when(service).checkId(Mockito.anyString());
+
+        mockMvc.perform(MockMvcRequestBuilders.post("/chartas/{id}", level)
+                        .param("x", "0")
+                        .param("y", "0")
+                        .param("width", "10")
+                        .param("height", "10")
+                        .contentType("image/bmp")
+                        .content(new byte[0])
+                )
+                .andExpect(MockMvcResultMatchers.status().isNotFound());
+        mockMvc.perform(MockMvcRequestBuilders.get("/chartas/{id}", level)
+                        .param("x", "0")
+                        .param("y", "0")
+                        .param("width", "10")
+                        .param("height", "10")
+                )
+                .andExpect(MockMvcResultMatchers.status().isNotFound());
+        mockMvc.perform(MockMvcRequestBuilders.delete("/chartas/{id}", level))
+                .andExpect(MockMvcResultMatchers.status().isNotFound());
+        mockMvc.perform(MockMvcRequestBuilders.post("/chartas/{id}/copy", "target")
+                        .param("source", level)
+                        .param("sourceX", "0")
+                        .param("sourceY", "0")
+                        .param("x", "0")
+                        .param("y", "0")
+                        .param("width", "10")
+                        .param("height", "10")
+                )
+                .andExpect(MockMvcResultMatchers.status().isNotFound());
+    }
+
+    @Test
+    public void copy_return_200() throws Exception {
+
+        MvcResult result = mockMvc.perform(MockMvcRequestBuilders.post("/chartas/{id}/copy", "target")
+                        .param("source", "source")
+                        .param("sourceX", "10")
+                        .param("sourceY", "20")
+                        .param("x", "0")
+                        .param("y", "0")
+                        .param("width", "20000")
+                        .param("height", "50000")
+                )
+                .andExpect(MockMvcResultMatchers.request().asyncStarted())
+                .andReturn();
+
+        mockMvc.perform(MockMvcRequestBuilders.asyncDispatch(result))
+                .andExpect(MockMvcResultMatchers.status().isOk());
+        Mockito.verify(service).copy("source", 10, 20, "target", 0, 0, 20000, 50000);
+    }
+
+    @Test
+    public void copy_return_404_when_wrong_source() throws Exception {
+
+        Mockito.doThrow(new NotFoundException("id not found")).when(service).checkId("source");
+
+        mockMvc.perform(MockMvcRequestBuilders.post("/chartas/{id}/copy", "target")
+                        .param("source", "source")
+                        .param("sourceX", "0")
+                        .param("sourceY", "0")
+                        .param("x", "0")
+                        .param("y", "0")
+                        .param("width", "10")
+                        .param("height", "10")
+                )
+                .andExpect(MockMvcResultMatchers.status().isNotFound());
+    }
+
+    @Test
+    public void prometheus_exposes_charta_metrics() throws Exception {
+
+        mockMvc.perform(MockMvcRequestBuilders.get("/actuator/prometheus"))
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(MockMvcResultMatchers.content().string(
+                        Matchers.containsString("chartographer_lock_wait_seconds_bucket")))
+                .andExpect(MockMvcResultMatchers.content().string(
+                        Matchers.containsString("chartographer_cache_hits_total")));
+    }
 }
@@ -0,0 +1,67 @@
+package com.example.chartographer;
+
+import com.example.chartographer.service.ChartaLockManager;
+import com.example.chartographer.service.ChartaLockManager.ChartaLock;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class ChartaLockManagerTest {
+
+    private final ChartaLockManager locks = new ChartaLockManager(1024, new SimpleMeterRegistry());
+
+    @Test
+    public void writers_of_disjoint_bands_do_not_block() throws Exception {
+        try (ChartaLock lock = locks.lock("charta", 0, 64, 64, false)) {
+            CompletableFuture.runAsync(() -> locks.lock("charta", 64, 128, 64, false).close())
+                    .get(1, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void readers_do_not_block_readers() throws Exception {
+        try (ChartaLock lock = locks.lock("charta", 0, 500, 64, true)) {
+            CompletableFuture.runAsync(() -> locks.lock("charta", 100, 200, 64, true).close())
+                    .get(1, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void writer_waits_for_overlapping_reader_and_wakes_on_release() throws Exception {
+        CountDownLatch acquired = new CountDownLatch(1);
+        CompletableFuture<Void> writer;
+        try (ChartaLock lock = locks.lock("charta", 0, 100, 64, true)) {
+            writer = CompletableFuture.runAsync(() -> {
+                try (ChartaLock write = locks.lock("charta", 90, 200, 64, false)) {
+                    acquired.countDown();
+                }
+            });
+            Assertions.assertThrows(TimeoutException.class, () -> writer.get(200, TimeUnit.MILLISECONDS));
+        }
+        Assertions.assertTrue(acquired.await(100, TimeUnit.MILLISECONDS));
+        writer.get();
+    }
+
+    @Test
+    public void lock_all_waits_for_any_band() throws Exception {
+        CompletableFuture<Void> delete;
+        try (ChartaLock lock = locks.lock("charta", 40000, 45000, 64, true)) {
+            delete = CompletableFuture.runAsync(() -> locks.lockAll("charta", 50000, 64).close());
+            Assertions.assertThrows(TimeoutException.class, () -> delete.get(200, TimeUnit.MILLISECONDS));
+        }
+        delete.get(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void lock_all_leaves_other_chartas_alone() throws Exception {
+        try (ChartaLock lock = locks.lock("other", 0, 64, 64, true)) {
+            CompletableFuture.runAsync(() -> locks.lockAll("charta", 5000, 64).close())
+                    .get(1, TimeUnit.SECONDS);
+        }
+    }
+}
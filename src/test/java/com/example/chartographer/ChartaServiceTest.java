@@ -3,38 +3,104 @@ package com.example.chartographer;
 import com.example.chartographer.config.Config;
 import com.example.chartographer.exception.BadRequestException;
 import com.example.chartographer.exception.NotFoundException;
+import com.example.chartographer.image.Bmp;
+import com.example.chartographer.image.ImageFormat;
+import com.example.chartographer.service.ChartaLockManager;
+import com.example.chartographer.service.ChartaLockManager.ChartaLock;
+import com.example.chartographer.service.ChartaPyramid;
 import com.example.chartographer.service.ChartaService;
+import com.example.chartographer.service.FragmentResult;
+import com.example.chartographer.storage.ChartaStore;
+import com.example.chartographer.storage.ContentLayout;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
-import org.springframework.core.io.ByteArrayResource;
+import org.springframework.test.annotation.DirtiesContext;
 
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
 
 @SpringBootTest
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_CLASS)
 @TestMethodOrder(MethodOrderer.OrderAnnotation.class)
 public class ChartaServiceTest {
 
+    private static final String RESOURCES = Paths.get("src", "test", "resources").toString();
+
+    @TempDir
+    static Path content;
+
+    private static String previousContent;
+
     @Autowired
     private ChartaService service;
 
+    @Autowired
+    private MeterRegistry registry;
+
+    @Autowired
+    private ContentLayout layout;
+
+    @Autowired
+    private ChartaLockManager locks;
+
+    @Autowired
+    private ChartaStore store;
+
     private static String testCharta = "";
 
+    /**
+     * Roots the content at a temporary directory holding copies of the test images, which act as chartas
+     * kept directly in the root.
+     */
     @BeforeAll
-    public static void testContentPath() {
-        Config.pathToContent = Paths.get("src", "test", "resources").toString();
+    public static void testContentPath() throws IOException {
+        try (Stream<Path> images = Files.list(Path.of(RESOURCES))) {
+            for (Path image : images.collect(Collectors.toList())) {
+                Files.copy(image, content.resolve(image.getFileName()));
+            }
+        }
+        previousContent = Config.pathToContent;
+        Config.pathToContent = content.toString();
+    }
+
+    @AfterAll
+    public static void restoreContentPath() {
+        Config.pathToContent = previousContent;
     }
 
     @Test
     @Order(1)
     public void create() throws IOException {
         testCharta = service.create(122, 165);
-        String actual = DigestUtils.md5Hex(Files.readAllBytes(Path.of(Config.pathToContent, testCharta)));
-        String expected = DigestUtils.md5Hex(Files.readAllBytes(Path.of(Config.pathToContent, "122x165_black.bmp")));
+        String actual = DigestUtils.md5Hex(Files.readAllBytes(layout.locate(testCharta)));
+        String expected = DigestUtils.md5Hex(Files.readAllBytes(Path.of(RESOURCES, "122x165_black.bmp")));
         Assertions.assertEquals(expected, actual);
     }
 
@@ -42,9 +108,9 @@ public class ChartaServiceTest {
     @Order(2)
     public void save_white_to_charta() throws IOException {
         service.save(testCharta, 12, 26, 1500, 1500,
-                Files.newInputStream(Path.of(Config.pathToContent, "150x89_white.bmp")));
-        String actual = DigestUtils.md5Hex(Files.readAllBytes(Path.of(Config.pathToContent, testCharta)));
-        String expected = DigestUtils.md5Hex(Files.readAllBytes(Path.of(Config.pathToContent, "black_white.bmp")));
+                Files.newInputStream(Path.of(RESOURCES, "150x89_white.bmp")));
+        String actual = DigestUtils.md5Hex(Files.readAllBytes(layout.locate(testCharta)));
+        String expected = DigestUtils.md5Hex(Files.readAllBytes(Path.of(RESOURCES, "black_white.bmp")));
         Assertions.assertEquals(expected, actual);
     }
 
@@ -52,9 +118,9 @@ public class ChartaServiceTest {
     @Order(3)
     public void save_red_1pxl_line_to_charta() throws IOException {
         service.save(testCharta, 121, 26, 1, 1500,
-                Files.newInputStream(Path.of(Config.pathToContent, "150x89_red.bmp")));
-        String actual = DigestUtils.md5Hex(Files.readAllBytes(Path.of(Config.pathToContent, testCharta)));
-        String expected = DigestUtils.md5Hex(Files.readAllBytes(Path.of(Config.pathToContent, "plus_red_1pxl.bmp")));
+                Files.newInputStream(Path.of(RESOURCES, "150x89_red.bmp")));
+        String actual = DigestUtils.md5Hex(Files.readAllBytes(layout.locate(testCharta)));
+        String expected = DigestUtils.md5Hex(Files.readAllBytes(Path.of(RESOURCES, "plus_red_1pxl.bmp")));
         Assertions.assertEquals(expected, actual);
     }
 
@@ -62,32 +128,36 @@ public class ChartaServiceTest {
     @Order(4)
     public void save_check_wrong_XY() throws IOException {
         Assertions.assertThrows(BadRequestException.class, () -> service.save(testCharta, 122, 26, 1, 1500,
-                Files.newInputStream(Path.of(Config.pathToContent, "150x89_red.bmp"))));
+                Files.newInputStream(Path.of(RESOURCES, "150x89_red.bmp"))));
 
         Assertions.assertThrows(BadRequestException.class, () -> service.save(testCharta, 0, 165, 1, 1500,
-                Files.newInputStream(Path.of(Config.pathToContent, "150x89_red.bmp"))));
+                Files.newInputStream(Path.of(RESOURCES, "150x89_red.bmp"))));
     }
 
     @Test
     @Order(5)
     public void get() throws IOException {
-        ByteArrayResource fragment2x2 = service.get(testCharta, 11, 25, 2, 2);
-        String actual = DigestUtils.md5Hex(fragment2x2.getByteArray());
-        String expected = DigestUtils.md5Hex(Files.readAllBytes(Path.of(Config.pathToContent, "fragment_2x2.bmp")));
+        ByteArrayOutputStream fragment2x2 = new ByteArrayOutputStream();
+        service.get(testCharta, 11, 25, 2, 2, fragment2x2);
+        String actual = DigestUtils.md5Hex(fragment2x2.toByteArray());
+        String expected = DigestUtils.md5Hex(Files.readAllBytes(Path.of(RESOURCES, "fragment_2x2.bmp")));
         Assertions.assertEquals(expected, actual);
 
-        ByteArrayResource fragment3x2 = service.get(testCharta, 120, 114, 3, 2);
-        actual = DigestUtils.md5Hex(fragment3x2.getByteArray());
-        expected = DigestUtils.md5Hex(Files.readAllBytes(Path.of(Config.pathToContent, "fragment_3x2.bmp")));
+        ByteArrayOutputStream fragment3x2 = new ByteArrayOutputStream();
+        service.get(testCharta, 120, 114, 3, 2, fragment3x2);
+        actual = DigestUtils.md5Hex(fragment3x2.toByteArray());
+        expected = DigestUtils.md5Hex(Files.readAllBytes(Path.of(RESOURCES, "fragment_3x2.bmp")));
         Assertions.assertEquals(expected, actual);
     }
 
     @Test
     @Order(6)
     public void get_check_wrong_XY() {
-        Assertions.assertThrows(BadRequestException.class, () -> service.get(testCharta, 122, 26, 1, 1500));
+        Assertions.assertThrows(BadRequestException.class, () -> service.get(testCharta, 122, 26, 1, 1500,
+                new ByteArrayOutputStream()));
 
-        Assertions.assertThrows(BadRequestException.class, () -> service.get(testCharta, 0, 165, 1, 1500));
+        Assertions.assertThrows(BadRequestException.class, () -> service.get(testCharta, 0, 165, 1, 1500,
+                new ByteArrayOutputStream()));
     }
 
     @Test
@@ -106,8 +176,481 @@ public class ChartaServiceTest {
 
     @Test
     @Order(9)
-    public void delete() throws IOException {
-        Files.deleteIfExists(Path.of(Config.pathToContent, testCharta));
-        Assertions.assertTrue(Files.notExists(Path.of(Config.pathToContent, testCharta)));
+    public void delete() throws Exception {
+        service.delete(testCharta);
+        Assertions.assertThrows(NotFoundException.class, () -> service.checkId(testCharta));
+        awaitRemoved(testCharta);
+        awaitRemoved(ChartaPyramid.levelId(testCharta, 1));
+    }
+
+    @Test
+    @Order(10)
+    public void save_concurrent_writers_to_disjoint_bands() throws Exception {
+        int writers = 8;
+        int bandHeight = store.getBandHeight();
+        String charta = service.create(150, 89 * writers);
+        ExecutorService executor = Executors.newFixedThreadPool(writers);
+        try {
+            Future<?> blocked;
+            try (ChartaLock lock = locks.lock(charta, 0, 1, bandHeight, false)) {
+                blocked = executor.submit(() -> save(charta, 0));
+                int y = 89 * (writers - 1);
+                Assertions.assertTrue(y >= bandHeight);
+                executor.submit(() -> save(charta, y)).get(5, TimeUnit.SECONDS);
+                Assertions.assertFalse(blocked.isDone());
+            }
+            blocked.get();
+
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 1; i < writers - 1; i++) {
+                int y = 89 * i;
+                futures.add(executor.submit(() -> save(charta, y)));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            service.get(charta, 0, 0, 150, 89 * writers, out);
+            byte[] bmp = out.toByteArray();
+            for (int row = 0; row < 89 * writers; row++) {
+                for (int i = 0; i < 150 * 3; i++) {
+                    Assertions.assertEquals((byte) 0xFF, bmp[54 + row * (150 * 3 + 2) + i]);
+                }
+            }
+        } finally {
+            executor.shutdown();
+            service.delete(charta);
+        }
+    }
+
+    private Void save(String charta, int y) throws IOException {
+        service.save(charta, 0, y, 150, 89, Files.newInputStream(Path.of(RESOURCES, "150x89_white.bmp")));
+        return null;
+    }
+
+    @Test
+    @Order(11)
+    public void preview_is_downsampled() throws IOException {
+        String charta = service.create(5, 3);
+        try {
+            service.save(charta, 1, 0, 150, 89,
+                    Files.newInputStream(Path.of(RESOURCES, "150x89_white.bmp")));
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            service.preview(charta, 2, 0, 0, 5000, 5000, out);
+            byte[] bmp = out.toByteArray();
+            Assertions.assertEquals(54 + 2 * (3 * 3 + 3), bmp.length);
+            byte[] top = Arrays.copyOfRange(bmp, 54 + 12, 54 + 12 + 9);
+            byte[] bottom = Arrays.copyOfRange(bmp, 54, 54 + 9);
+            Assertions.assertArrayEquals(new byte[]{(byte) 128, (byte) 128, (byte) 128, -1, -1, -1, -1, -1, -1}, top);
+            Assertions.assertArrayEquals(new byte[]{(byte) 128, (byte) 128, (byte) 128, -1, -1, -1, -1, -1, -1}, bottom);
+
+            Assertions.assertThrows(BadRequestException.class,
+                    () -> service.preview(charta, 3, 0, 0, 1, 1, new ByteArrayOutputStream()));
+            Assertions.assertThrows(BadRequestException.class,
+                    () -> service.preview(charta, 16, 0, 0, 1, 1, new ByteArrayOutputStream()));
+        } finally {
+            service.delete(charta);
+        }
+    }
+
+    @Test
+    @Order(12)
+    public void saveBatch_reports_each_fragment() throws IOException {
+        String charta = service.create(20, 10);
+        try {
+            ByteArrayOutputStream batch = new ByteArrayOutputStream();
+            DataOutputStream frames = new DataOutputStream(batch);
+            writeFrame(frames, 0, 0, 6, 6, "150x89_white.bmp");
+            writeFrame(frames, 20, 0, 6, 6, "150x89_white.bmp");
+            writeFrame(frames, 4, 4, 2, 2, "150x89_red.bmp");
+
+            List<FragmentResult> results = service.saveBatch(charta, new ByteArrayInputStream(batch.toByteArray()));
+            Assertions.assertEquals(List.of(200, 400, 200),
+                    results.stream().map(FragmentResult::getStatus).collect(Collectors.toList()));
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            service.get(charta, 3, 4, 2, 1, out);
+            byte[] bmp = out.toByteArray();
+            Assertions.assertArrayEquals(new byte[]{-1, -1, -1}, Arrays.copyOfRange(bmp, 54, 57));
+            Assertions.assertArrayEquals(new byte[]{0x24, 0x1c, (byte) 0xed}, Arrays.copyOfRange(bmp, 57, 60));
+
+            batch.write(new byte[]{0, 0});
+            Assertions.assertThrows(BadRequestException.class,
+                    () -> service.saveBatch(charta, new ByteArrayInputStream(batch.toByteArray())));
+        } finally {
+            service.delete(charta);
+        }
+    }
+
+    @Test
+    @Order(13)
+    public void get_encodes_png_and_raw_like_bmp() throws IOException {
+        String charta = service.create(300, 200);
+        try {
+            service.save(charta, 10, 100, 150, 89,
+                    Files.newInputStream(Path.of(RESOURCES, "150x89_red.bmp")));
+
+            ByteArrayOutputStream bmp = new ByteArrayOutputStream();
+            service.get(charta, 5, 90, 170, 120, ImageFormat.BMP, bmp);
+            ByteArrayOutputStream png = new ByteArrayOutputStream();
+            service.get(charta, 5, 90, 170, 120, ImageFormat.PNG, png);
+            ByteArrayOutputStream raw = new ByteArrayOutputStream();
+            service.get(charta, 5, 90, 170, 120, ImageFormat.RAW, raw);
+
+            BufferedImage expected = ImageIO.read(new ByteArrayInputStream(bmp.toByteArray()));
+            BufferedImage actual = ImageIO.read(new ByteArrayInputStream(png.toByteArray()));
+            Assertions.assertEquals(170, actual.getWidth());
+            Assertions.assertEquals(120, actual.getHeight());
+            Assertions.assertEquals(170 * 120 * 3, raw.size());
+            byte[] rgb = raw.toByteArray();
+            for (int row = 0; row < 120; row++) {
+                for (int col = 0; col < 170; col++) {
+                    int pixel = expected.getRGB(col, row);
+                    Assertions.assertEquals(pixel, actual.getRGB(col, row));
+                    int i = (row * 170 + col) * 3;
+                    Assertions.assertEquals(pixel & 0xFFFFFF,
+                            (rgb[i] & 0xFF) << 16 | (rgb[i + 1] & 0xFF) << 8 | rgb[i + 2] & 0xFF);
+                }
+            }
+        } finally {
+            service.delete(charta);
+        }
+    }
+
+    @Test
+    @Order(14)
+    public void save_decodes_png_and_bmp_variants() throws IOException {
+        int width = 37;
+        int height = 70;
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int row = 0; row < height; row++) {
+            for (int col = 0; col < width; col++) {
+                image.setRGB(col, row, row * 3 << 16 | col * 5 << 8 | (row * col) & 0xFF);
+            }
+        }
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", png);
+        ByteArrayOutputStream bmp = new ByteArrayOutputStream();
+        ImageIO.write(image, "bmp", bmp);
+
+        byte[] expected = null;
+        List<byte[]> uploads = List.of(bmp.toByteArray(), png.toByteArray(), splitIdat(png.toByteArray(), 100),
+                bmp(image, 24, true), bmp(image, 32, false));
+        for (byte[] upload : uploads) {
+            String charta = service.create(60, 100);
+            try {
+                service.save(charta, 5, 10, 50, 60, new ByteArrayInputStream(upload));
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                service.get(charta, 0, 0, 60, 100, out);
+                if (expected == null) {
+                    expected = out.toByteArray();
+                    BufferedImage saved = ImageIO.read(new ByteArrayInputStream(expected));
+                    Assertions.assertEquals(image.getRGB(36, 59), saved.getRGB(5 + 36, 10 + 59));
+                } else {
+                    Assertions.assertArrayEquals(expected, out.toByteArray());
+                }
+            } finally {
+                service.delete(charta);
+            }
+        }
+    }
+
+    @Test
+    @Order(15)
+    public void phases_are_timed() throws IOException {
+        String charta = service.create(50, 50);
+        try {
+            service.save(charta, 0, 0, 10, 10,
+                    Files.newInputStream(Path.of(RESOURCES, "150x89_white.bmp")));
+            service.get(charta, 0, 0, 10, 10, new ByteArrayOutputStream());
+        } finally {
+            service.delete(charta);
+        }
+        for (String phase : List.of("header", "lock", "copy", "pyramid")) {
+            Assertions.assertTrue(registry.get("chartographer.phase")
+                    .tags("operation", "save", "phase", phase, "size", "small").timer().count() > 0, phase);
+        }
+        Assertions.assertTrue(registry.get("chartographer.phase")
+                .tags("operation", "get", "phase", "response").timer().count() > 0);
+        Assertions.assertTrue(registry.get("chartographer.bytes").tags("operation", "get").counter().count() >= 300);
+        Assertions.assertTrue(registry.get("chartographer.lock.wait").tags("mode", "exclusive").timer().count() > 0);
+    }
+
+    @Test
+    @Order(16)
+    public void delete_does_not_wait_for_readers() throws Exception {
+        String charta = service.create(10, 10);
+        try (ChartaLock lock = locks.lock(charta, 0, 10, 1, true)) {
+            Assertions.assertTimeoutPreemptively(Duration.ofSeconds(1), () -> service.delete(charta));
+            Assertions.assertThrows(NotFoundException.class, () -> service.checkId(charta));
+            Thread.sleep(100);
+            Assertions.assertNotNull(layout.locate(charta));
+        }
+        awaitRemoved(charta);
+    }
+
+    @Test
+    @Order(17)
+    public void copy_between_and_within_chartas() throws Exception {
+        String source = service.create(150, 89);
+        String target = service.create(100, 200);
+        try {
+            service.save(source, 0, 0, 150, 89,
+                    Files.newInputStream(Path.of(RESOURCES, "150x89_red.bmp")));
+            service.save(source, 0, 0, 2, 2,
+                    Files.newInputStream(Path.of(RESOURCES, "fragment_2x2.bmp")));
+
+            service.copy(source, 0, 0, target, 60, 150, 150, 89);
+            BufferedImage copied = read(target, 60, 150, 40, 50);
+            BufferedImage original = read(source, 0, 0, 40, 50);
+            for (int row = 0; row < 50; row++) {
+                for (int col = 0; col < 40; col++) {
+                    Assertions.assertEquals(original.getRGB(col, row), copied.getRGB(col, row));
+                }
+            }
+            Assertions.assertEquals(0, read(target, 59, 149, 1, 1).getRGB(0, 0) & 0xFFFFFF);
+
+            service.copy(source, 0, 0, target, 0, 0, 100, 89);
+            service.copy(target, 0, 0, target, 1, 10, 100, 89);
+            BufferedImage moved = read(target, 0, 0, 100, 99);
+            original = read(source, 0, 0, 100, 89);
+            for (int row = 0; row < 89; row++) {
+                for (int col = 0; col < 99; col++) {
+                    Assertions.assertEquals(original.getRGB(col, row), moved.getRGB(col + 1, row + 10));
+                }
+            }
+            Assertions.assertThrows(BadRequestException.class, () -> service.copy(source, 150, 0, target, 0, 0, 1, 1));
+        } finally {
+            service.delete(source);
+            service.delete(target);
+        }
+    }
+
+    @Test
+    @Order(18)
+    public void etag_changes_only_with_covered_bands() throws Exception {
+        String charta = service.create(150, 1000);
+        try {
+            String top = service.etag(charta, 0, 89, ImageFormat.BMP);
+            String bottom = service.etag(charta, 900, 89, ImageFormat.BMP);
+            Assertions.assertNotEquals(top, service.etag(charta, 0, 89, ImageFormat.PNG));
+
+            service.save(charta, 0, 0, 150, 89,
+                    Files.newInputStream(Path.of(RESOURCES, "150x89_red.bmp")));
+            Assertions.assertNotEquals(top, service.etag(charta, 0, 89, ImageFormat.BMP));
+            Assertions.assertEquals(bottom, service.etag(charta, 900, 89, ImageFormat.BMP));
+
+            String copied = service.etag(charta, 900, 89, ImageFormat.BMP);
+            service.copy(charta, 0, 0, charta, 0, 900, 150, 89);
+            Assertions.assertNotEquals(copied, service.etag(charta, 900, 89, ImageFormat.BMP));
+        } finally {
+            service.delete(charta);
+        }
+    }
+
+    @Test
+    @Order(19)
+    public void save_rejects_forged_bmp_headers() {
+        byte[] wide = Bmp.header(1 << 30, 1);
+        byte[] tall = Bmp.header(1, 1);
+        ByteBuffer.wrap(tall).order(ByteOrder.LITTLE_ENDIAN).putInt(Bmp.HEIGHT_OFFSET, Integer.MIN_VALUE);
+        byte[] offset = Bmp.header(1, 1);
+        ByteBuffer.wrap(offset).order(ByteOrder.LITTLE_ENDIAN).putInt(Bmp.DATA_OFFSET, Integer.MAX_VALUE);
+        for (byte[] header : List.of(wide, tall, offset)) {
+            Assertions.assertThrows(BadRequestException.class,
+                    () -> service.save(testCharta, 0, 0, 1, 1, new ByteArrayInputStream(header)));
+        }
+    }
+
+    @Test
+    @Order(20)
+    public void save_rejects_forged_png_headers() {
+        for (int[] header : new int[][]{{1 << 30, 1, 2, 0}, {1, 1, 3, Integer.MAX_VALUE}}) {
+            ByteBuffer png = ByteBuffer.allocate(45)
+                    .put(new byte[]{(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'})
+                    .putInt(13).put("IHDR".getBytes(StandardCharsets.US_ASCII)).putInt(header[0]).putInt(header[1])
+                    .put((byte) 8).put((byte) header[2]).put((byte) 0).put((byte) 0).put((byte) 0).putInt(0)
+                    .putInt(header[3]).put("PLTE".getBytes(StandardCharsets.US_ASCII));
+            Assertions.assertThrows(BadRequestException.class,
+                    () -> service.save(testCharta, 0, 0, 1, 1, new ByteArrayInputStream(png.array())));
+        }
+    }
+
+    @Test
+    @Order(21)
+    public void get_writes_no_row_under_a_lock() throws Exception {
+        String charta = service.create(10, 10);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            List<Boolean> writable = new ArrayList<>();
+            OutputStream client = new OutputStream() {
+                @Override
+                public void write(int b) {
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    try {
+                        writable.add(executor.submit(() -> {
+                            locks.lock(charta, 0, 10, 1, false).close();
+                            return true;
+                        }).get(5, TimeUnit.SECONDS));
+                    } catch (Exception e) {
+                        throw new IOException(e);
+                    }
+                }
+            };
+            service.get(charta, 0, 0, 10, 10, ImageFormat.RAW, client);
+            Assertions.assertFalse(writable.isEmpty());
+        } finally {
+            executor.shutdown();
+            service.delete(charta);
+        }
+    }
+
+    @Test
+    @Order(22)
+    public void save_rejects_truncated_png() throws IOException {
+        byte[] png = noisePng(16, 16);
+        int idat = indexOf(png, "IDAT") - 4;
+        int idatLength = ByteBuffer.wrap(png).getInt(idat);
+
+        byte[] cut = Arrays.copyOf(png, png.length - 20);
+        ByteBuffer halfIdat = ByteBuffer.allocate(idat + 12 + idatLength / 2 + 12)
+                .put(png, 0, idat).put(chunk("IDAT", Arrays.copyOfRange(png, idat + 8, idat + 8 + idatLength / 2)))
+                .put(chunk("IEND", new byte[0]));
+        String charta = service.create(16, 16);
+        for (byte[] truncated : List.of(cut, halfIdat.array())) {
+            Assertions.assertThrows(BadRequestException.class,
+                    () -> service.save(charta, 0, 0, 16, 16, new ByteArrayInputStream(truncated)));
+        }
+        service.save(charta, 0, 0, 16, 16, new ByteArrayInputStream(png));
+        service.delete(charta);
+    }
+
+    @Test
+    @Order(23)
+    public void save_rejects_png_with_corrupt_data() throws IOException {
+        byte[] png = noisePng(16, 16);
+        int idat = indexOf(png, "IDAT") - 4;
+        int idatLength = ByteBuffer.wrap(png).getInt(idat);
+        byte[] corrupt = png.clone();
+        Arrays.fill(corrupt, idat + 8 + 2, idat + 8 + idatLength, (byte) 0xFF);
+        String charta = service.create(16, 16);
+        Assertions.assertThrows(BadRequestException.class,
+                () -> service.save(charta, 0, 0, 16, 16, new ByteArrayInputStream(corrupt)));
+        service.delete(charta);
+    }
+
+    private BufferedImage read(String id, int x, int y, int width, int height) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        service.get(id, x, y, width, height, out);
+        return ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    private void awaitRemoved(String id) throws InterruptedException {
+        for (int i = 0; i < 100 && layout.locate(id) != null; i++) {
+            Thread.sleep(50);
+        }
+        Assertions.assertNull(layout.locate(id));
+    }
+
+    private static byte[] noisePng(int width, int height) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(1);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, random.nextInt());
+            }
+        }
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", png);
+        return png.toByteArray();
+    }
+
+    private static int indexOf(byte[] data, String type) {
+        byte[] name = type.getBytes(StandardCharsets.US_ASCII);
+        for (int i = 0; i + name.length <= data.length; i++) {
+            if (Arrays.equals(data, i, i + name.length, name, 0, name.length)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException(type);
+    }
+
+    private static byte[] chunk(String type, byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(type.getBytes(StandardCharsets.US_ASCII));
+        crc.update(data);
+        return ByteBuffer.allocate(data.length + 12).putInt(data.length)
+                .put(type.getBytes(StandardCharsets.US_ASCII)).put(data).putInt((int) crc.getValue()).array();
+    }
+
+    /**
+     * Rewrites the IDAT chunks of a PNG as chunks of at most {@code size} bytes.
+     */
+    private static byte[] splitIdat(byte[] png, int size) {
+        ByteBuffer in = ByteBuffer.wrap(png);
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        ByteBuffer out = ByteBuffer.allocate(png.length * 2);
+        out.put(png, 0, 8);
+        in.position(8);
+        while (in.hasRemaining()) {
+            int length = in.getInt();
+            byte[] chunk = new byte[length + 8];
+            in.get(chunk);
+            String type = new String(chunk, 0, 4, StandardCharsets.US_ASCII);
+            if ("IDAT".equals(type)) {
+                data.write(chunk, 4, length);
+                continue;
+            }
+            byte[] idat = data.toByteArray();
+            for (int offset = 0; offset < idat.length; offset += size) {
+                int part = Math.min(size, idat.length - offset);
+                CRC32 crc = new CRC32();
+                crc.update("IDAT".getBytes(StandardCharsets.US_ASCII));
+                crc.update(idat, offset, part);
+                out.putInt(part).put("IDAT".getBytes(StandardCharsets.US_ASCII)).put(idat, offset, part)
+                        .putInt((int) crc.getValue());
+            }
+            data.reset();
+            out.putInt(length).put(chunk);
+        }
+        return Arrays.copyOf(out.array(), out.position());
+    }
+
+    private static byte[] bmp(BufferedImage image, int bits, boolean bottomUp) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int rowSize = bits == 24 ? width * 3 + width % 4 : width * 4;
+        ByteBuffer bmp = ByteBuffer.allocate(54 + rowSize * height).order(ByteOrder.LITTLE_ENDIAN);
+        bmp.put((byte) 'B').put((byte) 'M').putInt(bmp.capacity()).putInt(0).putInt(54)
+                .putInt(40).putInt(width).putInt(bottomUp ? height : -height).putShort((short) 1)
+                .putShort((short) bits).putInt(0).putInt(rowSize * height).putInt(0).putInt(0).putInt(0).putInt(0);
+        for (int i = 0; i < height; i++) {
+            int row = bottomUp ? height - 1 - i : i;
+            bmp.position(54 + i * rowSize);
+            for (int col = 0; col < width; col++) {
+                int rgb = image.getRGB(col, row);
+                bmp.put((byte) rgb).put((byte) (rgb >> 8)).put((byte) (rgb >> 16));
+                if (bits == 32) {
+                    bmp.put((byte) 0xFF);
+                }
+            }
+        }
+        return bmp.array();
+    }
+
+    private void writeFrame(DataOutputStream frames, int x, int y, int width, int height, String file)
+            throws IOException {
+        byte[] image = Files.readAllBytes(Path.of(RESOURCES, file));
+        frames.writeInt(x);
+        frames.writeInt(y);
+        frames.writeInt(width);
+        frames.writeInt(height);
+        frames.writeInt(image.length);
+        frames.write(image);
     }
 }
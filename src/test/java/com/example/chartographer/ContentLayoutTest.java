@@ -0,0 +1,91 @@
+package com.example.chartographer;
+
+import com.example.chartographer.storage.BmpChartaStore;
+import com.example.chartographer.storage.Charta;
+import com.example.chartographer.storage.ContentLayout;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+
+public class ContentLayoutTest {
+
+    @TempDir
+    Path first;
+
+    @TempDir
+    Path second;
+
+    @Test
+    public void chartas_spread_over_roots_and_shards() throws IOException {
+        ContentLayout layout = new ContentLayout(first + "," + second, 16);
+        BmpChartaStore store = new BmpChartaStore(false, 0, 256, layout);
+        Set<Path> roots = new HashSet<>();
+        Set<Path> shards = new HashSet<>();
+        for (int i = 0; i < 64; i++) {
+            store.create("charta-" + i, 2, 2);
+            Path path = layout.locate("charta-" + i);
+            Assertions.assertTrue(Files.isRegularFile(path));
+            Assertions.assertEquals(1, path.getParent().getFileName().toString().length());
+            roots.add(path.getParent().getParent());
+            shards.add(path.getParent());
+        }
+        Assertions.assertEquals(Set.of(first, second), roots);
+        Assertions.assertTrue(shards.size() > 16);
+        store.closeAll();
+    }
+
+    @Test
+    public void index_is_rebuilt_with_unsharded_chartas() throws IOException {
+        ContentLayout layout = new ContentLayout(first + ", " + second, 256);
+        BmpChartaStore store = new BmpChartaStore(false, 0, 256, layout);
+        store.create("sharded", 3, 3);
+        try (Charta charta = store.open("sharded", false)) {
+            charta.write(1, 1, 1, 1, ByteBuffer.wrap(new byte[]{1, 2, 3}));
+        }
+        store.closeAll();
+        Files.copy(layout.locate("sharded"), second.resolve("flat"));
+
+        ContentLayout restartedLayout = new ContentLayout(first + ", " + second, 256);
+        Assertions.assertTrue(restartedLayout.scan(Files::isRegularFile).containsAll(Set.of("sharded", "flat")));
+        BmpChartaStore restarted = new BmpChartaStore(false, 0, 256, restartedLayout);
+        restarted.scan();
+        for (String id : new String[]{"sharded", "flat"}) {
+            ByteBuffer pixel = ByteBuffer.allocate(3);
+            try (Charta charta = restarted.open(id, true)) {
+                charta.read(1, 1, 1, 1, pixel);
+            }
+            Assertions.assertArrayEquals(new byte[]{1, 2, 3}, pixel.array());
+        }
+
+        restarted.delete("sharded");
+        Assertions.assertNull(restartedLayout.locate("sharded"));
+        Assertions.assertFalse(restarted.exists("sharded"));
+        Assertions.assertTrue(restarted.exists("flat"));
+        restarted.closeAll();
+    }
+
+    @Test
+    public void scan_skips_reserved_directories_and_lookups_stay_in_the_index() throws IOException {
+        Files.createDirectories(first.resolve(ContentLayout.JOURNAL_DIR));
+        Files.createDirectories(first.resolve(ContentLayout.TOMBSTONES_DIR));
+        Files.createDirectories(first.resolve("stray"));
+        Files.write(first.resolve("flat"), new byte[0]);
+
+        ContentLayout layout = new ContentLayout(first.toString(), 256);
+        Assertions.assertEquals(Set.of("flat"), layout.scan(Files::isRegularFile));
+
+        Files.write(first.resolve("late"), new byte[0]);
+        Assertions.assertNull(layout.locate("late"));
+        Path placed = layout.place("placed", 0);
+        Assertions.assertEquals(placed, layout.locate("placed"));
+        layout.forget("placed");
+        Assertions.assertNull(layout.locate("placed"));
+    }
+}
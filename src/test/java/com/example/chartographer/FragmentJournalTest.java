@@ -0,0 +1,330 @@
+package com.example.chartographer;
+
+import com.example.chartographer.image.Bmp;
+import com.example.chartographer.service.ChartaLockManager;
+import com.example.chartographer.service.ChartaMetrics;
+import com.example.chartographer.service.ChartaPyramid;
+import com.example.chartographer.service.ChartaReaper;
+import com.example.chartographer.service.ChartaService;
+import com.example.chartographer.service.ChartaVersions;
+import com.example.chartographer.service.FragmentJournal;
+import com.example.chartographer.service.FragmentResult;
+import com.example.chartographer.service.ParallelBands;
+import com.example.chartographer.storage.BmpChartaStore;
+import com.example.chartographer.storage.Charta;
+import com.example.chartographer.storage.ChartaStore;
+import com.example.chartographer.storage.ContentLayout;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class FragmentJournalTest {
+
+    @TempDir
+    static Path content;
+
+    private final ContentLayout layout = new ContentLayout(content.toString(), 256);
+
+    private final ChartaStore store = new BmpChartaStore(false, 0, 256, layout);
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    private final ChartaLockManager locks = new ChartaLockManager(64, registry);
+
+    private final ChartaPyramid pyramid = new ChartaPyramid(store, locks, false);
+
+    private final ChartaVersions versions = new ChartaVersions();
+
+    @Test
+    public void journaled_save_is_visible_to_get() throws IOException {
+        FragmentJournal journal = new FragmentJournal(store, locks, pyramid, versions, layout, true, 1 << 10);
+        journal.start();
+        try {
+            ChartaMetrics metrics = new ChartaMetrics(registry);
+            ChartaReaper reaper = new ChartaReaper(store, locks, pyramid, journal, layout, versions, metrics);
+            ChartaService service = new ChartaService(store, locks, pyramid, journal, reaper, versions,
+                    new ParallelBands(store, 1, 0), metrics);
+            String id = service.create(10, 10);
+            for (int i = 0; i < 5; i++) {
+                service.save(id, i, i, 4, 4, new ByteArrayInputStream(bmp(4, 4, (byte) (i + 1))));
+            }
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            service.get(id, 4, 4, 4, 4, out);
+            byte[] row = Arrays.copyOfRange(out.toByteArray(), Bmp.HEADER_SIZE, Bmp.HEADER_SIZE + 12);
+            byte[] expected = new byte[12];
+            Arrays.fill(expected, (byte) 5);
+            Assertions.assertArrayEquals(expected, row);
+
+            BufferedImage image = new BufferedImage(2, 2, BufferedImage.TYPE_INT_RGB);
+            image.setRGB(0, 0, 0x010203);
+            image.setRGB(1, 1, 0x040506);
+            ByteArrayOutputStream png = new ByteArrayOutputStream();
+            ImageIO.write(image, "png", png);
+            service.save(id, 8, 8, 2, 2, new ByteArrayInputStream(png.toByteArray()));
+            out.reset();
+            service.get(id, 8, 8, 2, 2, out);
+            BufferedImage saved = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+            Assertions.assertEquals(0x010203, saved.getRGB(0, 0) & 0xFFFFFF);
+            Assertions.assertEquals(0x040506, saved.getRGB(1, 1) & 0xFFFFFF);
+            Assertions.assertEquals(0, saved.getRGB(1, 0) & 0xFFFFFF);
+        } finally {
+            journal.stop();
+        }
+    }
+
+    @Test
+    public void batch_goes_through_the_journal_within_its_pixel_budget() throws IOException {
+        FragmentJournal journal = new FragmentJournal(store, locks, pyramid, versions, layout, true, 1 << 10);
+        journal.start();
+        try {
+            ChartaMetrics metrics = new ChartaMetrics(registry);
+            ChartaReaper reaper = new ChartaReaper(store, locks, pyramid, journal, layout, versions, metrics);
+            ChartaService service = new ChartaService(store, locks, pyramid, journal, reaper, versions,
+                    new ParallelBands(store, 1, 0), metrics);
+            ReflectionTestUtils.setField(service, "batchMaxBytes", 1 << 20);
+            ReflectionTestUtils.setField(service, "batchMaxPixelBytes", 4 * 4 * 3 * 2);
+            String id = service.create(10, 10);
+
+            ByteArrayOutputStream batch = new ByteArrayOutputStream();
+            DataOutputStream frames = new DataOutputStream(batch);
+            for (int i = 0; i < 3; i++) {
+                byte[] image = bmp(4, 4, (byte) (i + 1));
+                frames.writeInt(i);
+                frames.writeInt(i);
+                frames.writeInt(4);
+                frames.writeInt(4);
+                frames.writeInt(image.length);
+                frames.write(image);
+            }
+            List<FragmentResult> results = service.saveBatch(id, new ByteArrayInputStream(batch.toByteArray()));
+            Assertions.assertEquals(List.of(200, 200, 400),
+                    results.stream().map(FragmentResult::getStatus).collect(Collectors.toList()));
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            service.get(id, 1, 1, 1, 1, out);
+            Assertions.assertArrayEquals(new byte[]{2, 2, 2},
+                    Arrays.copyOfRange(out.toByteArray(), Bmp.HEADER_SIZE, Bmp.HEADER_SIZE + 3));
+        } finally {
+            journal.stop();
+        }
+    }
+
+    @Test
+    public void replay_applies_committed_records_and_skips_torn_ones() throws IOException {
+        store.create("replayed", 4, 2);
+        FragmentJournal journal = new FragmentJournal(failingWrites("replayed"::equals), locks, pyramid, versions,
+                layout, true, 1 << 20);
+        journal.start();
+
+        byte[] row = new byte[12];
+        Arrays.fill(row, (byte) 9);
+        FragmentJournal.Record committed = journal.append("replayed", 0, 0, 4, 1, true);
+        committed.write(row);
+        journal.commit(committed);
+
+        FragmentJournal.Record torn = journal.append("replayed", 0, 1, 4, 1, false);
+        torn.write(row);
+        journal.stop();
+
+        FragmentJournal restarted = new FragmentJournal(store, locks, pyramid, versions, layout, true, 1 << 20);
+        restarted.start();
+        restarted.stop();
+
+        ByteBuffer pixels = ByteBuffer.allocate(24);
+        try (Charta charta = store.open("replayed", true)) {
+            charta.read(0, 0, 4, 2, pixels);
+        }
+        Assertions.assertArrayEquals(row, Arrays.copyOfRange(pixels.array(), 0, 12));
+        Assertions.assertArrayEquals(new byte[12], Arrays.copyOfRange(pixels.array(), 12, 24));
+        try (Stream<Path> segments = Files.list(content.resolve("journal"))) {
+            Assertions.assertEquals(0, segments.filter(p -> p.getFileName().toString().startsWith("segment-")).count());
+        }
+    }
+
+    @Test
+    public void disabled_journal_still_replays_leftover_segments() throws IOException {
+        store.create("leftover", 4, 1);
+        FragmentJournal journal = new FragmentJournal(failingWrites("leftover"::equals), locks, pyramid, versions,
+                layout, true, 1 << 20);
+        journal.start();
+        byte[] row = new byte[12];
+        Arrays.fill(row, (byte) 5);
+        FragmentJournal.Record record = journal.append("leftover", 0, 0, 4, 1, true);
+        record.write(row);
+        journal.commit(record);
+        journal.stop();
+
+        FragmentJournal disabled = new FragmentJournal(store, locks, pyramid, versions, layout, false, 1 << 20);
+        disabled.start();
+        disabled.stop();
+
+        ByteBuffer pixels = ByteBuffer.allocate(12);
+        try (Charta charta = store.open("leftover", true)) {
+            charta.read(0, 0, 4, 1, pixels);
+        }
+        Assertions.assertArrayEquals(row, pixels.array());
+        try (Stream<Path> segments = Files.list(content.resolve("journal"))) {
+            Assertions.assertEquals(0, segments.filter(p -> p.getFileName().toString().startsWith("segment-")).count());
+        }
+    }
+
+    @Test
+    public void replay_skips_records_applied_before_a_copy() throws IOException {
+        FragmentJournal journal = new FragmentJournal(store, locks, pyramid, versions, layout, true, 1 << 20);
+        journal.start();
+        String id;
+        try {
+            ChartaMetrics metrics = new ChartaMetrics(registry);
+            ChartaReaper reaper = new ChartaReaper(store, locks, pyramid, journal, layout, versions, metrics);
+            ChartaService service = new ChartaService(store, locks, pyramid, journal, reaper, versions,
+                    new ParallelBands(store, 1, 0), metrics);
+            id = service.create(4, 4);
+            String source = service.create(4, 4);
+            service.save(id, 0, 0, 4, 4, new ByteArrayInputStream(bmp(4, 4, (byte) 1)));
+            service.save(source, 0, 0, 4, 4, new ByteArrayInputStream(bmp(4, 4, (byte) 2)));
+            service.copy(source, 0, 0, id, 0, 0, 4, 4);
+        } finally {
+            journal.stop();
+        }
+
+        FragmentJournal restarted = new FragmentJournal(store, locks, pyramid, versions, layout, true, 1 << 20);
+        restarted.start();
+        restarted.stop();
+
+        ByteBuffer pixels = ByteBuffer.allocate(48);
+        try (Charta charta = store.open(id, true)) {
+            charta.read(0, 0, 4, 4, pixels);
+        }
+        byte[] expected = new byte[48];
+        Arrays.fill(expected, (byte) 2);
+        Assertions.assertArrayEquals(expected, pixels.array());
+    }
+
+    @Test
+    public void failed_apply_is_retried_until_it_succeeds() throws IOException {
+        AtomicInteger failures = new AtomicInteger(2);
+        ChartaStore failing = failingWrites(id -> failures.getAndDecrement() > 0);
+        store.create("retried", 4, 1);
+        FragmentJournal journal = new FragmentJournal(failing, locks, pyramid, versions, layout, true, 1 << 20);
+        journal.start();
+        try {
+            byte[] row = new byte[12];
+            Arrays.fill(row, (byte) 7);
+            FragmentJournal.Record record = journal.append("retried", 0, 0, 4, 1, true);
+            record.write(row);
+            journal.commit(record);
+            journal.flush("retried");
+
+            Assertions.assertEquals(-1, failures.get());
+            ByteBuffer pixels = ByteBuffer.allocate(12);
+            try (Charta charta = store.open("retried", true)) {
+                charta.read(0, 0, 4, 1, pixels);
+            }
+            Assertions.assertArrayEquals(row, pixels.array());
+        } finally {
+            journal.stop();
+        }
+    }
+
+    @Test
+    public void poisoned_charta_is_quarantined_without_blocking_others() throws IOException {
+        ChartaStore failing = failingWrites("poisoned"::equals);
+        store.create("poisoned", 4, 4);
+        FragmentJournal journal = new FragmentJournal(failing, locks, pyramid, versions, layout, true, 1 << 20);
+        journal.start();
+        try {
+            ChartaMetrics metrics = new ChartaMetrics(registry);
+            ChartaReaper reaper = new ChartaReaper(failing, locks, pyramid, journal, layout, versions, metrics);
+            ChartaService service = new ChartaService(failing, locks, pyramid, journal, reaper, versions,
+                    new ParallelBands(failing, 1, 0), metrics);
+            String id = service.create(4, 4);
+            service.save("poisoned", 0, 0, 4, 4, new ByteArrayInputStream(bmp(4, 4, (byte) 1)));
+            service.save(id, 0, 0, 4, 4, new ByteArrayInputStream(bmp(4, 4, (byte) 3)));
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            service.get(id, 0, 0, 1, 1, out);
+            Assertions.assertArrayEquals(new byte[]{3, 3, 3},
+                    Arrays.copyOfRange(out.toByteArray(), Bmp.HEADER_SIZE, Bmp.HEADER_SIZE + 3));
+
+            Assertions.assertTrue(journal.isQuarantined("poisoned"));
+            Assertions.assertThrows(IOException.class, () -> service.get("poisoned", 0, 0, 1, 1, out));
+            Assertions.assertThrows(IOException.class, () -> service.save("poisoned", 0, 0, 4, 4,
+                    new ByteArrayInputStream(bmp(4, 4, (byte) 2))));
+            try (Stream<Path> kept = Files.list(content.resolve("journal"))) {
+                Assertions.assertEquals(1, kept.filter(p -> p.getFileName().toString()
+                        .startsWith("quarantine-poisoned-")).count());
+            }
+
+            service.save(id, 0, 0, 4, 4, new ByteArrayInputStream(bmp(4, 4, (byte) 4)));
+            out.reset();
+            service.get(id, 0, 0, 1, 1, out);
+            Assertions.assertArrayEquals(new byte[]{4, 4, 4},
+                    Arrays.copyOfRange(out.toByteArray(), Bmp.HEADER_SIZE, Bmp.HEADER_SIZE + 3));
+
+            journal.release("poisoned");
+            Assertions.assertFalse(journal.isQuarantined("poisoned"));
+        } finally {
+            journal.stop();
+        }
+    }
+
+    /**
+     * Store whose opens for writing fail with an IOException while the predicate holds for the charta.
+     */
+    private ChartaStore failingWrites(Predicate<String> fails) {
+        return new ChartaStore() {
+            @Override
+            public void create(String id, int width, int height) throws IOException {
+                store.create(id, width, height);
+            }
+
+            @Override
+            public Charta open(String id, boolean readOnly) throws IOException {
+                if (!readOnly && fails.test(id)) {
+                    throw new IOException("Disk is gone");
+                }
+                return store.open(id, readOnly);
+            }
+
+            @Override
+            public boolean exists(String id) {
+                return store.exists(id);
+            }
+
+            @Override
+            public void delete(String id) throws IOException {
+                store.delete(id);
+            }
+
+            @Override
+            public int getBandHeight() {
+                return store.getBandHeight();
+            }
+        };
+    }
+
+    private static byte[] bmp(int width, int height, byte value) {
+        byte[] image = new byte[Bmp.HEADER_SIZE + Bmp.rowSize(width) * height];
+        System.arraycopy(Bmp.header(width, height), 0, image, 0, Bmp.HEADER_SIZE);
+        Arrays.fill(image, Bmp.HEADER_SIZE, image.length, value);
+        return image;
+    }
+}
@@ -0,0 +1,82 @@
+package com.example.chartographer;
+
+import com.example.chartographer.service.ChartaService;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.actuate.metrics.AutoConfigureMetrics;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.http.HttpHeaders;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
+import org.springframework.test.web.servlet.result.MockMvcResultMatchers;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@SpringBootTest(properties = {
+        "chartographer.io.quick-threads=1",
+        "chartographer.io.bulk-threads=1",
+        "chartographer.io.queue-capacity=1"
+})
+@AutoConfigureMockMvc
+@AutoConfigureMetrics
+public class IoExecutorsTest {
+
+    @MockBean
+    private ChartaService service;
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Test
+    public void full_executor_return_503_with_retry_after() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Mockito.doAnswer(invocation -> {
+            started.countDown();
+            release.await();
+            return null;
+        }).when(service).copy(Mockito.anyString(), Mockito.anyInt(), Mockito.anyInt(), Mockito.anyString(),
+                Mockito.anyInt(), Mockito.anyInt(), Mockito.anyInt(), Mockito.anyInt());
+
+        MvcResult running;
+        MvcResult queued;
+        try {
+            running = mockMvc.perform(copy())
+                    .andExpect(MockMvcResultMatchers.request().asyncStarted())
+                    .andReturn();
+            Assertions.assertTrue(started.await(5, TimeUnit.SECONDS));
+            queued = mockMvc.perform(copy())
+                    .andExpect(MockMvcResultMatchers.request().asyncStarted())
+                    .andReturn();
+
+            mockMvc.perform(copy())
+                    .andExpect(MockMvcResultMatchers.status().isServiceUnavailable())
+                    .andExpect(MockMvcResultMatchers.header().string(HttpHeaders.RETRY_AFTER, "1"));
+        } finally {
+            release.countDown();
+        }
+
+        mockMvc.perform(MockMvcRequestBuilders.asyncDispatch(running))
+                .andExpect(MockMvcResultMatchers.status().isOk());
+        mockMvc.perform(MockMvcRequestBuilders.asyncDispatch(queued))
+                .andExpect(MockMvcResultMatchers.status().isOk());
+    }
+
+    private static MockHttpServletRequestBuilder copy() {
+        return MockMvcRequestBuilders.post("/chartas/target/copy")
+                .param("source", "source")
+                .param("sourceX", "0")
+                .param("sourceY", "0")
+                .param("x", "0")
+                .param("y", "0")
+                .param("width", "10")
+                .param("height", "10");
+    }
+}
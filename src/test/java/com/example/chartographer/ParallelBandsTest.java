@@ -0,0 +1,123 @@
+package com.example.chartographer;
+
+import com.example.chartographer.service.ChartaLockManager;
+import com.example.chartographer.service.ChartaMetrics;
+import com.example.chartographer.service.ChartaPyramid;
+import com.example.chartographer.service.ChartaReaper;
+import com.example.chartographer.service.ChartaService;
+import com.example.chartographer.service.ChartaVersions;
+import com.example.chartographer.service.FragmentJournal;
+import com.example.chartographer.service.ParallelBands;
+import com.example.chartographer.storage.BmpChartaStore;
+import com.example.chartographer.storage.ChartaStore;
+import com.example.chartographer.storage.ContentLayout;
+import com.example.chartographer.storage.TiledChartaStore;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class ParallelBandsTest {
+
+    @TempDir
+    static Path content;
+
+    private final ContentLayout layout = new ContentLayout(content.toString(), 256);
+
+    @Test
+    public void parallel_bands_match_sequential_ones() throws IOException {
+        for (ChartaStore store : new ChartaStore[]{new BmpChartaStore(false, 0, 256, layout),
+                new BmpChartaStore(true, 1 << 16, 256, layout), new TiledChartaStore(16, "rle", layout)}) {
+            ParallelBands parallel = new ParallelBands(store, 4, 1);
+            ChartaService sequentialService = service(store, new ParallelBands(store, 1, 1));
+            ChartaService parallelService = service(store, parallel);
+            try {
+                String charta = parallelService.create(300, 500);
+                BufferedImage image = new BufferedImage(250, 450, BufferedImage.TYPE_INT_RGB);
+                Random random = new Random(7);
+                for (int row = 0; row < image.getHeight(); row++) {
+                    for (int col = 0; col < image.getWidth(); col++) {
+                        image.setRGB(col, row, random.nextInt(0x1000000));
+                    }
+                }
+                ByteArrayOutputStream bmp = new ByteArrayOutputStream();
+                ImageIO.write(image, "bmp", bmp);
+                ByteArrayOutputStream png = new ByteArrayOutputStream();
+                ImageIO.write(image, "png", png);
+                parallelService.save(charta, 70, 3, 250, 450, new ByteArrayInputStream(bmp.toByteArray()));
+                parallelService.save(charta, 0, 60, 250, 450, new ByteArrayInputStream(png.toByteArray()));
+
+                ByteArrayOutputStream sequential = new ByteArrayOutputStream();
+                sequentialService.get(charta, 10, 1, 290, 499, sequential);
+                ByteArrayOutputStream parallelOut = new ByteArrayOutputStream();
+                parallelService.get(charta, 10, 1, 290, 499, parallelOut);
+                Assertions.assertArrayEquals(sequential.toByteArray(), parallelOut.toByteArray());
+
+                BufferedImage saved = ImageIO.read(new ByteArrayInputStream(sequential.toByteArray()));
+                Assertions.assertEquals(image.getRGB(0, 0), saved.getRGB(60, 2));
+                Assertions.assertEquals(image.getRGB(249, 400), saved.getRGB(239, 459));
+                Assertions.assertEquals(image.getRGB(100, 2), saved.getRGB(160, 4));
+            } finally {
+                parallel.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void parallel_gets_and_saves_of_one_charta_all_finish() throws Exception {
+        ChartaStore store = new BmpChartaStore(false, 0, 16, layout);
+        ParallelBands parallel = new ParallelBands(store, 2, 1);
+        ChartaService service = service(store, parallel);
+        ExecutorService clients = Executors.newFixedThreadPool(8);
+        try {
+            String charta = service.create(200, 400);
+            BufferedImage image = new BufferedImage(200, 400, BufferedImage.TYPE_INT_RGB);
+            ByteArrayOutputStream bmp = new ByteArrayOutputStream();
+            ImageIO.write(image, "bmp", bmp);
+            List<Future<?>> requests = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                boolean save = i % 2 == 0;
+                requests.add(clients.submit(() -> {
+                    for (int k = 0; k < 50; k++) {
+                        if (save) {
+                            service.save(charta, 0, 0, 200, 400, new ByteArrayInputStream(bmp.toByteArray()));
+                        } else {
+                            service.get(charta, 0, 0, 200, 400, new ByteArrayOutputStream());
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> request : requests) {
+                request.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            clients.shutdownNow();
+            parallel.shutdown();
+        }
+    }
+
+    private ChartaService service(ChartaStore store, ParallelBands parallelBands) {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        ChartaLockManager locks = new ChartaLockManager(64, registry);
+        ChartaPyramid pyramid = new ChartaPyramid(store, locks, false);
+        ChartaVersions versions = new ChartaVersions();
+        ChartaMetrics metrics = new ChartaMetrics(registry);
+        FragmentJournal journal = new FragmentJournal(store, locks, pyramid, versions, layout, false, 0);
+        ChartaReaper reaper = new ChartaReaper(store, locks, pyramid, journal, layout, versions, metrics);
+        return new ChartaService(store, locks, pyramid, journal, reaper, versions, parallelBands, metrics);
+    }
+}
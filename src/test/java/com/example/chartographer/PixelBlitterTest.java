@@ -0,0 +1,155 @@
+package com.example.chartographer;
+
+import com.example.chartographer.image.Bmp;
+import com.example.chartographer.image.PixelBlitter;
+import com.example.chartographer.image.PixelRaster;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+public class PixelBlitterTest {
+
+    @Test
+    public void copies_inside_rectangle() {
+        PixelRaster src = numbered(ByteBuffer.allocate(10 * 8 * 3), 10, 8, 30, false);
+        PixelRaster dst = new PixelRaster(ByteBuffer.allocate(6 * 5 * 3), 0, 6, 5, 18, false);
+
+        Assertions.assertEquals(3, PixelBlitter.blit(src, 2, 3, dst, 1, 1, 4, 3));
+        assertBlit(src, 2, 3, dst, 1, 1, 4, 3);
+    }
+
+    @Test
+    public void clips_on_every_edge() {
+        int[][] cases = {
+                {-2, 0, 0, 0, 5, 3},
+                {0, -3, 0, 0, 5, 5},
+                {0, 0, -1, -2, 5, 5},
+                {7, 5, 0, 0, 10, 10},
+                {0, 0, 3, 2, 10, 10},
+                {-4, -4, 4, 4, 20, 20},
+                {-20, 0, 0, 0, 5, 5},
+                {0, 0, 6, 0, 5, 5},
+        };
+        for (int[] c : cases) {
+            PixelRaster src = numbered(ByteBuffer.allocate(10 * 8 * 3), 10, 8, 30, false);
+            PixelRaster dst = new PixelRaster(ByteBuffer.allocate(6 * 5 * 3), 0, 6, 5, 18, false);
+            PixelBlitter.blit(src, c[0], c[1], dst, c[2], c[3], c[4], c[5]);
+            assertBlit(src, c[0], c[1], dst, c[2], c[3], c[4], c[5]);
+        }
+        PixelRaster src = numbered(ByteBuffer.allocate(3), 1, 1, 3, false);
+        PixelRaster dst = new PixelRaster(ByteBuffer.allocate(3), 0, 1, 1, 3, false);
+        Assertions.assertEquals(0, PixelBlitter.blit(src, 0, 0, dst, 1, 0, 1, 1));
+        Assertions.assertEquals(0, PixelBlitter.blit(src, 0, 0, dst, 0, 0, 0, 1));
+    }
+
+    @Test
+    public void flips_bottom_up_rows_and_keeps_padding() {
+        int stride = Bmp.rowSize(5);
+        PixelRaster bmp = numbered(ByteBuffer.allocate(10 + stride * 4), 5, 4, stride, true, 10);
+        ByteBuffer padded = ByteBuffer.allocate(Bmp.rowSize(3) * 4);
+        padded.put(0, (byte) -1).put(9, (byte) -1).put(21, (byte) -1);
+        PixelRaster dst = new PixelRaster(padded, 0, 3, 4, Bmp.rowSize(3), false);
+
+        Assertions.assertEquals(4, PixelBlitter.blit(bmp, 1, 0, dst, 0, 0, 3, 4));
+        for (int row = 0; row < 4; row++) {
+            for (int col = 0; col < 3; col++) {
+                Assertions.assertEquals(pixel(bmp, col + 1, row), pixel(dst, col, row));
+            }
+            Assertions.assertEquals(row <= 1 ? -1 : 0, padded.get(row * Bmp.rowSize(3) + 9));
+        }
+
+        PixelRaster back = new PixelRaster(ByteBuffer.allocate(10 + stride * 4), 10, 5, 4, stride, true);
+        PixelBlitter.blit(dst, 0, 0, back, 1, 0, 3, 4);
+        Assertions.assertEquals(pixel(bmp, 2, 3), pixel(back, 2, 3));
+        Assertions.assertEquals(pixel(bmp, 1, 3), pixel(back, 1, 3));
+        Assertions.assertEquals(0, pixel(back, 0, 3));
+    }
+
+    @Test
+    public void direct_buffers_keep_position_and_limit() {
+        ByteBuffer direct = ByteBuffer.allocateDirect(2 + 4 * 4 * 3);
+        direct.position(2);
+        PixelRaster src = numbered(direct, 4, 4, 12, false, 2);
+        ByteBuffer heap = ByteBuffer.allocate(4 * 4 * 3);
+        heap.position(5).limit(7);
+        PixelRaster dst = new PixelRaster(heap, 0, 4, 4, 12, false);
+        direct.position(3).limit(9);
+
+        PixelBlitter.blit(src, 1, 1, dst, 0, 0, 3, 3);
+        Assertions.assertEquals(3, direct.position());
+        Assertions.assertEquals(9, direct.limit());
+        Assertions.assertEquals(5, heap.position());
+        Assertions.assertEquals(7, heap.limit());
+        direct.clear();
+        heap.clear();
+        assertBlit(src, 1, 1, dst, 0, 0, 3, 3);
+
+        ByteBuffer target = ByteBuffer.allocateDirect(4 * 4 * 3);
+        PixelRaster direct2 = new PixelRaster(target, 0, 4, 4, 12, false);
+        PixelBlitter.blit(dst, 0, 0, direct2, 1, 1, 3, 3);
+        Assertions.assertEquals(pixel(src, 2, 2), pixel(direct2, 2, 2));
+    }
+
+    @Test
+    public void overlapping_rectangles_of_one_buffer() {
+        for (boolean direct : new boolean[]{false, true}) {
+            ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(4 * 5 * 3) : ByteBuffer.allocate(4 * 5 * 3);
+            PixelRaster raster = numbered(buffer, 4, 5, 12, false);
+            int[] before = new int[4 * 5];
+            for (int i = 0; i < before.length; i++) {
+                before[i] = pixel(raster, i % 4, i / 4);
+            }
+            PixelBlitter.blit(raster, 0, 0, raster, 1, 1, 3, 4);
+            for (int row = 1; row < 5; row++) {
+                for (int col = 1; col < 4; col++) {
+                    Assertions.assertEquals(before[(row - 1) * 4 + col - 1], pixel(raster, col, row));
+                }
+            }
+        }
+    }
+
+    private static PixelRaster numbered(ByteBuffer buffer, int width, int height, int stride, boolean bottomUp) {
+        return numbered(buffer, width, height, stride, bottomUp, 0);
+    }
+
+    private static PixelRaster numbered(ByteBuffer buffer, int width, int height, int stride, boolean bottomUp,
+                                        int offset) {
+        PixelRaster raster = new PixelRaster(buffer, offset, width, height, stride, bottomUp);
+        for (int row = 0; row < height; row++) {
+            for (int col = 0; col < width; col++) {
+                int at = offset(raster, col, row);
+                buffer.put(at, (byte) (row + 1)).put(at + 1, (byte) (col + 1)).put(at + 2, (byte) 7);
+            }
+        }
+        return raster;
+    }
+
+    private static int offset(PixelRaster raster, int x, int y) {
+        int row = raster.isBottomUp() ? raster.getHeight() - 1 - y : y;
+        return raster.getOffset() + row * raster.getStride() + x * 3;
+    }
+
+    private static int pixel(PixelRaster raster, int x, int y) {
+        int at = offset(raster, x, y);
+        ByteBuffer buffer = raster.getBuffer();
+        return (buffer.get(at) & 0xFF) << 16 | (buffer.get(at + 1) & 0xFF) << 8 | buffer.get(at + 2) & 0xFF;
+    }
+
+    /**
+     * Checks every pixel of the destination against a naive clipped copy into an initially black raster.
+     */
+    private static void assertBlit(PixelRaster src, int srcX, int srcY, PixelRaster dst, int dstX, int dstY,
+                                   int width, int height) {
+        for (int row = 0; row < dst.getHeight(); row++) {
+            for (int col = 0; col < dst.getWidth(); col++) {
+                int sx = col - dstX + srcX;
+                int sy = row - dstY + srcY;
+                boolean inside = col >= dstX && col < dstX + width && row >= dstY && row < dstY + height
+                        && sx >= 0 && sx < src.getWidth() && sy >= 0 && sy < src.getHeight();
+                Assertions.assertEquals(inside ? pixel(src, sx, sy) : 0, pixel(dst, col, row),
+                        "pixel " + col + "," + row);
+            }
+        }
+    }
+}
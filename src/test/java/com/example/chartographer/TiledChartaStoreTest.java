@@ -0,0 +1,141 @@
+package com.example.chartographer;
+
+import com.example.chartographer.storage.Charta;
+import com.example.chartographer.storage.ContentLayout;
+import com.example.chartographer.storage.TiledChartaStore;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.stream.Stream;
+
+public class TiledChartaStoreTest {
+
+    @TempDir
+    static Path content;
+
+    private final ContentLayout layout = new ContentLayout(content.toString(), 256);
+
+    private final TiledChartaStore store = new TiledChartaStore(4, "none", layout);
+
+    @Test
+    public void write_and_read_across_tiles() throws IOException {
+        store.create("across", 10, 9);
+        ByteBuffer fragment = ByteBuffer.allocate(5 * 6 * 3);
+        for (int i = 0; i < fragment.capacity(); i++) {
+            fragment.put((byte) (i + 1));
+        }
+        fragment.flip();
+        try (Charta charta = store.open("across", false)) {
+            Assertions.assertEquals(10, charta.getWidth());
+            Assertions.assertEquals(9, charta.getHeight());
+            charta.write(3, 2, 5, 6, fragment);
+            Assertions.assertFalse(fragment.hasRemaining());
+        }
+
+        ByteBuffer actual = ByteBuffer.allocate(10 * 9 * 3);
+        try (Charta charta = store.open("across", true)) {
+            charta.read(0, 0, 10, 9, actual);
+        }
+        for (int row = 0; row < 9; row++) {
+            for (int col = 0; col < 10; col++) {
+                for (int c = 0; c < 3; c++) {
+                    boolean inside = row >= 2 && row < 8 && col >= 3 && col < 8;
+                    int expected = inside ? (((row - 2) * 5 + col - 3) * 3 + c + 1) : 0;
+                    Assertions.assertEquals((byte) expected, actual.get((row * 10 + col) * 3 + c));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void create_is_sparse_and_black() throws IOException {
+        store.create("sparse", 20000, 50000);
+        try (Stream<Path> files = Files.list(layout.locate("sparse"))) {
+            Assertions.assertEquals(1, files.count());
+        }
+        ByteBuffer actual = ByteBuffer.allocate(7 * 5 * 3);
+        try (Charta charta = store.open("sparse", true)) {
+            charta.read(19990, 49990, 7, 5, actual);
+        }
+        Assertions.assertArrayEquals(new byte[7 * 5 * 3], actual.array());
+    }
+
+    @Test
+    public void compressed_tiles_round_trip() throws IOException {
+        for (String codec : new String[]{"rle", "deflate"}) {
+            TiledChartaStore compressed = new TiledChartaStore(4, codec, layout);
+            String id = "compressed-" + codec;
+            compressed.create(id, 8, 4);
+            ByteBuffer fragment = ByteBuffer.allocate(8 * 4 * 3);
+            for (int i = 0; i < fragment.capacity(); i++) {
+                fragment.put((byte) (i < 4 * 4 * 3 ? 0x40 : i * 7));
+            }
+            fragment.flip();
+            try (Charta charta = compressed.open(id, false)) {
+                charta.write(0, 0, 8, 4, fragment);
+            }
+            Assertions.assertTrue(Files.size(layout.locate(id).resolve("tile_0_0")) < 4 * 4 * 3);
+
+            ByteBuffer actual = ByteBuffer.allocate(8 * 4 * 3);
+            try (Charta charta = store.open(id, true)) {
+                charta.read(0, 0, 8, 4, actual);
+            }
+            Assertions.assertArrayEquals(fragment.array(), actual.array());
+            Assertions.assertTrue(compressed.getStats().getCompressionRatio() > 1);
+        }
+    }
+
+    @Test
+    public void failed_tile_write_keeps_the_previous_tile() throws IOException {
+        TiledChartaStore compressed = new TiledChartaStore(4, "rle", layout);
+        compressed.create("replaced", 4, 4);
+        ByteBuffer black = ByteBuffer.allocate(4 * 4 * 3);
+        ByteBuffer grey = ByteBuffer.allocate(4 * 4 * 3);
+        Arrays.fill(grey.array(), (byte) 0x40);
+        try (Charta charta = compressed.open("replaced", false)) {
+            charta.write(0, 0, 4, 4, grey);
+            Files.createDirectory(layout.locate("replaced").resolve("tmp_tile_0_0"));
+            Assertions.assertThrows(IOException.class, () -> charta.write(0, 0, 4, 4, black));
+        }
+
+        ByteBuffer actual = ByteBuffer.allocate(4 * 4 * 3);
+        try (Charta charta = compressed.open("replaced", true)) {
+            charta.read(0, 0, 4, 4, actual);
+        }
+        Assertions.assertArrayEquals(grey.array(), actual.array());
+    }
+
+    @Test
+    public void scan_deletes_temporary_tiles_left_by_a_crash() throws IOException {
+        store.create("crashed", 4, 4);
+        Path temporary = Files.write(layout.locate("crashed").resolve("tmp_tile_0_0"), new byte[7]);
+        new TiledChartaStore(4, "rle", new ContentLayout(content.toString(), 256)).scan();
+        Assertions.assertFalse(Files.exists(temporary));
+        Assertions.assertTrue(Files.exists(layout.locate("crashed").resolve("charta.meta")));
+    }
+
+    @Test
+    public void charta_of_another_tile_size_is_refused() throws IOException {
+        TiledChartaStore larger = new TiledChartaStore(8, "none", layout);
+        larger.create("larger", 8, 8);
+        try {
+            TiledChartaStore restarted = new TiledChartaStore(4, "none", new ContentLayout(content.toString(), 256));
+            Assertions.assertThrows(IOException.class, restarted::scan);
+        } finally {
+            larger.delete("larger");
+        }
+    }
+
+    @Test
+    public void delete() throws IOException {
+        store.create("deleted", 5, 5);
+        Assertions.assertTrue(store.exists("deleted"));
+        store.delete("deleted");
+        Assertions.assertFalse(store.exists("deleted"));
+    }
+}